@@ -1,5 +1,12 @@
 #APP_CFLAGS := 
-ifeq (1,$(NDK_ARCH_ALL))
+
+# Variants are additional lib sets, built with "make variants" and packaged in
+# assets/lib/<variant>/, see LibMPD.initLib():
+# - x86-ssse3: x86 with SSSE3
+ifeq (x86-ssse3,$(AMPD_VARIANT))
+APP_ABI := x86
+APP_CFLAGS := -mssse3
+else ifeq (1,$(NDK_ARCH_ALL))
 APP_ABI := armeabi-v7a armeabi x86 mips
 else
 APP_ABI := armeabi-v7a
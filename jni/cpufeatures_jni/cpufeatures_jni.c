@@ -21,6 +21,51 @@ Java_be_deadba_ampd_CpuFeatures_hasNeon(JNIEnv *env)
 	return android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON;
 }
 
+jint
+Java_be_deadba_ampd_CpuFeatures_getCpuCount(JNIEnv *env)
+{
+	return android_getCpuCount();
+}
+
+jboolean
+Java_be_deadba_ampd_CpuFeatures_isX86(JNIEnv *env)
+{
+	return android_getCpuFamily() == ANDROID_CPU_FAMILY_X86;
+}
+
+jboolean
+Java_be_deadba_ampd_CpuFeatures_hasSsse3(JNIEnv *env)
+{
+	return android_getCpuFamily() == ANDROID_CPU_FAMILY_X86
+		&& (android_getCpuFeatures() & ANDROID_CPU_X86_FEATURE_SSSE3);
+}
+
+/*
+ * The cpufeatures library of the NDK doesn't report SSE4: read it from cpuid
+ * (leaf 1, ecx bit 19: SSE4.1, bit 20: SSE4.2).
+ */
+jboolean
+Java_be_deadba_ampd_CpuFeatures_hasSse4(JNIEnv *env)
+{
+#if defined(__i386__) || defined(__x86_64__)
+	unsigned int eax = 1, ebx, ecx = 0, edx;
+
+#if defined(__i386__) && defined(__PIC__)
+	/* ebx is the GOT register */
+	__asm__ volatile ("xchgl %%ebx, %1\n\t"
+	                  "cpuid\n\t"
+	                  "xchgl %%ebx, %1"
+	                  : "+a" (eax), "=&r" (ebx), "+c" (ecx), "=d" (edx));
+#else
+	__asm__ volatile ("cpuid"
+	                  : "+a" (eax), "=b" (ebx), "+c" (ecx), "=d" (edx));
+#endif
+	return (ecx & (1 << 19)) && (ecx & (1 << 20));
+#else
+	return 0;
+#endif
+}
+
 jint JNI_OnLoad(JavaVM* vm, void* reserved)
 {
 	JNIEnv* env = NULL;
@@ -2,16 +2,19 @@ LOCAL_PATH := $(call my-dir)
 
 include $(CLEAR_VARS)
 
-LOCAL_C_INCLUDES :=
+LOCAL_C_INCLUDES := $(ANDROID_LIBS_PATH)/headers/sqlite
 
 LOCAL_SRC_FILES := \
-	mpd_jni.c
+	mpd_jni.c \
+	mpd_log.c \
+	mpd_sticker.c
 
 LOCAL_MODULE := libmpd_jni
 
 LOCAL_SHARED_LIBRARIES := libmpd
 
-LOCAL_LDLIBS := -llog
+# libsqlite of the device, see android-libs
+LOCAL_LDLIBS := -llog -L$(ANDROID_LIBS_PATH)/$(TARGET_ARCH) -lsqlite
 
 ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
 LOCAL_ARM_NEON:= true
@@ -18,10 +18,19 @@
  */
 
 #include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
 
 #include <jni.h>
 #include <android/log.h>
 
+#include "mpd_log.h"
+
 #define LOG_NDEBUG 0
 #define LOG_TAG "mpd_jni"
 
@@ -33,38 +42,910 @@ void libmpd_deinit();
 int libmpd_run(int argc, char *argv[]);
 void libmpd_quit(void);
 
+/*
+ * Optional libmpd API: only provided by recent libmpd builds (jni/mpd).
+ * These symbols are weak and NULL when libmpd doesn't provide them.
+ */
+
+/* lifecycle phases, must match LibMPD.PHASE_* */
+enum {
+	LIBMPD_PHASE_CONFIG_PARSED = 1,
+	LIBMPD_PHASE_LISTENING = 2,
+	LIBMPD_PHASE_DB_LOADED = 3,
+	LIBMPD_PHASE_STATE_RESTORED = 4,
+};
+void libmpd_set_phase_callback(void (*cb)(int phase)) __attribute__((weak));
+
+/* statistics, must match LibMPD.STAT_* */
+enum {
+	LIBMPD_STAT_UNDERRUNS = 0,
+	LIBMPD_STAT_SONGS = 1,
+	LIBMPD_STAT_CLIENTS = 2,
+	LIBMPD_STAT_COUNT,
+};
+/* return the value of a LIBMPD_STAT_*, -1 if unknown */
+long long libmpd_get_stat(int id) __attribute__((weak));
+
+/*
+ * Return non zero if libmpd is built with an optional feature, by name:
+ * "libsamplerate", "vorbisenc" or "lame" (httpd encoders), "zlib" (compress
+ * option of the simple database)
+ */
+int libmpd_has_feature(const char *name) __attribute__((weak));
+
+/* optional features of libmpd, must match LibMPD.CAP_* */
+enum {
+	LIBMPD_CAP_STATS = 0x1,
+	LIBMPD_CAP_SAMPLERATE = 0x2,
+	LIBMPD_CAP_JNI_OUTPUT = 0x4,
+	LIBMPD_CAP_VORBIS_ENCODER = 0x8,
+	LIBMPD_CAP_LAME_ENCODER = 0x10,
+	LIBMPD_CAP_COMPRESSED_DB = 0x20,
+	LIBMPD_CAP_MEDIACODEC = 0x40,
+};
+
+/*
+ * Hardware decoder of the mediacodec decoder plugin, implemented by
+ * MediaCodecDecoder.java. The buffers are the direct ByteBuffers of
+ * MediaCodec: compressed data is written into the input buffers, the 16 bit
+ * PCM is read from the output buffers. Negative indexes are
+ * LIBMPD_MEDIACODEC_* codes. If open() fails, the plugin lets libav decode
+ * the stream.
+ */
+enum {
+	LIBMPD_MEDIACODEC_TRY_AGAIN = -1,
+	LIBMPD_MEDIACODEC_END_OF_STREAM = -2,
+	LIBMPD_MEDIACODEC_ERROR = -3,
+};
+struct libmpd_mediacodec {
+	void *(*open)(const char *mime, unsigned sample_rate, unsigned channels,
+	              const void *csd, size_t csd_size);
+	/* return an input buffer of *capacity bytes, NULL if *index < 0 */
+	void *(*get_input)(void *codec, int *index, size_t *capacity);
+	int (*queue_input)(void *codec, int index, size_t size, int64_t pts_us,
+	                   int eos);
+	/* return *size bytes of PCM, NULL if *index < 0 */
+	const void *(*get_output)(void *codec, int *index, size_t *size,
+	                          unsigned *sample_rate, unsigned *channels);
+	void (*release_output)(void *codec, int index);
+	void (*flush)(void *codec);
+	void (*close)(void *codec);
+};
+void libmpd_set_mediacodec(const struct libmpd_mediacodec *mediacodec) __attribute__((weak));
+
+/*
+ * "jni" audio output plugin: mpd writes 16 bit PCM into a single-producer,
+ * single-consumer ring that JniAudioOutput.java drains into an AudioTrack.
+ * All the functions are called from the mpd output thread.
+ */
+struct libmpd_jni_output {
+	/* buffer_time in ms, return NULL if the format isn't supported */
+	void *(*open)(unsigned sample_rate, unsigned channels, unsigned bits,
+	              unsigned buffer_time);
+	/*
+	 * copy up to size bytes, return the number of bytes copied, 0 if full,
+	 * -1 if the java writer failed: the output must then be closed
+	 */
+	ssize_t (*write)(void *output, const void *data, size_t size);
+	/* return the duration of the audio in the ring, in ms */
+	unsigned (*delay)(void *output);
+	/* wait until the ring is empty, return -1 if the java writer failed */
+	int (*drain)(void *output);
+	/* drop the content of the ring */
+	void (*cancel)(void *output);
+	void (*close)(void *output);
+};
+void libmpd_set_jni_output(const struct libmpd_jni_output *jni_output) __attribute__((weak));
+
 #define MPD_ARGC 2
 
+static JavaVM *mpd_vm = NULL;
+static jclass libmpd_class = NULL;
+static jmethodID on_native_phase_id = NULL;
+static pthread_key_t thread_env_key;
+
+/* MediaCodecDecoder, NULL if not found */
+static jclass mc_class = NULL;
+static jmethodID mc_create_id;
+static jmethodID mc_dequeue_input_id;
+static jmethodID mc_get_input_buffer_id;
+static jmethodID mc_queue_input_id;
+static jmethodID mc_dequeue_output_id;
+static jmethodID mc_get_output_buffer_id;
+static jmethodID mc_release_output_id;
+static jmethodID mc_flush_id;
+static jmethodID mc_release_id;
+
+/* dequeueOutput() info, must match MediaCodecDecoder.INFO_* */
+enum {
+	MC_INFO_OFFSET,
+	MC_INFO_SIZE,
+	MC_INFO_SAMPLE_RATE,
+	MC_INFO_CHANNELS,
+	MC_INFO_COUNT,
+};
+
+/* codec of the libmpd_mediacodec functions */
+struct mediacodec {
+	jobject decoder;
+	/* filled by dequeueOutput(), allocated once per decoder */
+	jintArray info;
+};
+
+/* JniAudioOutput, NULL if not found */
+static jclass jo_class = NULL;
+static jmethodID jo_open_id;
+static jmethodID jo_close_id;
+
+/*
+ * libmpd can be initialized, run and deinitialized several times in the same
+ * process. These states protect against a quit request that comes before
+ * libmpd_run() or after it returned.
+ */
+enum {
+	MPD_STATE_IDLE,
+	MPD_STATE_INIT,
+	MPD_STATE_RUNNING,
+};
+
+static pthread_mutex_t mpd_lock = PTHREAD_MUTEX_INITIALIZER;
+static int mpd_state = MPD_STATE_IDLE;
+static int mpd_quit_requested = 0;
+
+/*
+ * Return a JNIEnv for the current thread, attach it to the VM if needed.
+ */
+static JNIEnv *
+mpd_jni_get_env(int *attached)
+{
+	JNIEnv *env = NULL;
+
+	*attached = 0;
+	if (!mpd_vm)
+		return NULL;
+	if ((*mpd_vm)->GetEnv(mpd_vm, (void**) &env, JNI_VERSION_1_4) == JNI_EDETACHED) {
+		if ((*mpd_vm)->AttachCurrentThread(mpd_vm, &env, NULL) != JNI_OK)
+			return NULL;
+		*attached = 1;
+	}
+	return env;
+}
+
+static void
+mpd_jni_release_env(int attached)
+{
+	if (attached)
+		(*mpd_vm)->DetachCurrentThread(mpd_vm);
+}
+
+static void
+thread_env_destroy(void *env)
+{
+	if (mpd_vm)
+		(*mpd_vm)->DetachCurrentThread(mpd_vm);
+}
+
+/*
+ * Return a JNIEnv for the current thread, attached until the thread exits:
+ * for the threads that call into java for each buffer. Such a thread never
+ * returns to java, local references must be deleted.
+ */
+static JNIEnv *
+mpd_jni_get_thread_env(void)
+{
+	JNIEnv *env = NULL;
+
+	if (!mpd_vm)
+		return NULL;
+	if ((*mpd_vm)->GetEnv(mpd_vm, (void**) &env, JNI_VERSION_1_4) == JNI_EDETACHED) {
+		if ((*mpd_vm)->AttachCurrentThread(mpd_vm, &env, NULL) != JNI_OK)
+			return NULL;
+		pthread_setspecific(thread_env_key, env);
+	}
+	return env;
+}
+
+static int
+mpd_jni_check_exception(JNIEnv *env, const char *method)
+{
+	if (!(*env)->ExceptionCheck(env))
+		return 0;
+	LOGE("%s raised an exception", method);
+	(*env)->ExceptionDescribe(env);
+	(*env)->ExceptionClear(env);
+	return 1;
+}
+
+static void *
+mediacodec_open(const char *mime, unsigned sample_rate, unsigned channels,
+                const void *csd, size_t csd_size)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+	jstring jmime;
+	jbyteArray jcsd = NULL;
+	jobject decoder;
+	jintArray info;
+	struct mediacodec *codec = NULL;
+
+	if (!env || !mc_class)
+		return NULL;
+
+	jmime = (*env)->NewStringUTF(env, mime);
+	if (!jmime) {
+		mpd_jni_check_exception(env, "NewStringUTF");
+		return NULL;
+	}
+	if (csd && csd_size > 0) {
+		jcsd = (*env)->NewByteArray(env, csd_size);
+		if (!jcsd) {
+			mpd_jni_check_exception(env, "NewByteArray");
+			goto end;
+		}
+		(*env)->SetByteArrayRegion(env, jcsd, 0, csd_size, csd);
+	}
+
+	decoder = (*env)->CallStaticObjectMethod(env, mc_class, mc_create_id, jmime,
+	                                         (jint) sample_rate, (jint) channels, jcsd);
+	if (mpd_jni_check_exception(env, "MediaCodecDecoder.create") || !decoder)
+		goto end;
+
+	info = (*env)->NewIntArray(env, MC_INFO_COUNT);
+	if (!info) {
+		mpd_jni_check_exception(env, "NewIntArray");
+		(*env)->CallVoidMethod(env, decoder, mc_release_id);
+		mpd_jni_check_exception(env, "MediaCodecDecoder.release");
+		(*env)->DeleteLocalRef(env, decoder);
+		goto end;
+	}
+	codec = malloc(sizeof(*codec));
+	if (codec) {
+		codec->decoder = (*env)->NewGlobalRef(env, decoder);
+		codec->info = (*env)->NewGlobalRef(env, info);
+	} else {
+		(*env)->CallVoidMethod(env, decoder, mc_release_id);
+		mpd_jni_check_exception(env, "MediaCodecDecoder.release");
+	}
+	(*env)->DeleteLocalRef(env, info);
+	(*env)->DeleteLocalRef(env, decoder);
+end:
+	if (jcsd)
+		(*env)->DeleteLocalRef(env, jcsd);
+	(*env)->DeleteLocalRef(env, jmime);
+	return codec;
+}
+
+/*
+ * Return the address of a direct ByteBuffer returned by a MediaCodecDecoder
+ * method. MediaCodec keeps a reference to its buffers, the address stays
+ * valid once the local reference is deleted.
+ */
+static void *
+mediacodec_get_buffer(JNIEnv *env, jobject decoder, jmethodID method, int index,
+                      size_t *capacity)
+{
+	jobject buffer;
+	void *data;
+
+	buffer = (*env)->CallObjectMethod(env, decoder, method, (jint) index);
+	if (mpd_jni_check_exception(env, "MediaCodecDecoder.get*Buffer") || !buffer)
+		return NULL;
+	data = (*env)->GetDirectBufferAddress(env, buffer);
+	if (capacity)
+		*capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	(*env)->DeleteLocalRef(env, buffer);
+	return data;
+}
+
+static void *
+mediacodec_get_input(void *codec, int *index, size_t *capacity)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+	jobject decoder = ((struct mediacodec *) codec)->decoder;
+	void *data;
+
+	if (!env) {
+		*index = LIBMPD_MEDIACODEC_ERROR;
+		return NULL;
+	}
+	*index = (*env)->CallIntMethod(env, decoder, mc_dequeue_input_id);
+	if (mpd_jni_check_exception(env, "MediaCodecDecoder.dequeueInput"))
+		*index = LIBMPD_MEDIACODEC_ERROR;
+	if (*index < 0)
+		return NULL;
+
+	data = mediacodec_get_buffer(env, decoder, mc_get_input_buffer_id, *index, capacity);
+	if (!data)
+		*index = LIBMPD_MEDIACODEC_ERROR;
+	return data;
+}
+
+static int
+mediacodec_queue_input(void *codec, int index, size_t size, int64_t pts_us, int eos)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+	jboolean ret;
+
+	if (!env)
+		return LIBMPD_MEDIACODEC_ERROR;
+	ret = (*env)->CallBooleanMethod(env, ((struct mediacodec *) codec)->decoder,
+	                                mc_queue_input_id,
+	                                (jint) index, (jint) size, (jlong) pts_us,
+	                                (jboolean) (eos != 0));
+	if (mpd_jni_check_exception(env, "MediaCodecDecoder.queueInput") || !ret)
+		return LIBMPD_MEDIACODEC_ERROR;
+	return 0;
+}
+
+static const void *
+mediacodec_get_output(void *codec, int *index, size_t *size,
+                      unsigned *sample_rate, unsigned *channels)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+	struct mediacodec *mc = codec;
+	jint info[MC_INFO_COUNT];
+	char *data;
+
+	*size = 0;
+	if (!env) {
+		*index = LIBMPD_MEDIACODEC_ERROR;
+		return NULL;
+	}
+	/* one up-call for the index, the position and the format of the PCM */
+	*index = (*env)->CallIntMethod(env, mc->decoder, mc_dequeue_output_id, mc->info);
+	if (mpd_jni_check_exception(env, "MediaCodecDecoder.dequeueOutput"))
+		*index = LIBMPD_MEDIACODEC_ERROR;
+	if (*index < 0)
+		return NULL;
+
+	(*env)->GetIntArrayRegion(env, mc->info, 0, MC_INFO_COUNT, info);
+	if (mpd_jni_check_exception(env, "GetIntArrayRegion"))
+		goto error;
+	data = mediacodec_get_buffer(env, mc->decoder, mc_get_output_buffer_id, *index, NULL);
+	if (!data) /* not a direct buffer */
+		goto error;
+
+	*size = info[MC_INFO_SIZE];
+	*sample_rate = info[MC_INFO_SAMPLE_RATE];
+	*channels = info[MC_INFO_CHANNELS];
+	return data + info[MC_INFO_OFFSET];
+error:
+	(*env)->CallVoidMethod(env, mc->decoder, mc_release_output_id, (jint) *index);
+	mpd_jni_check_exception(env, "MediaCodecDecoder.releaseOutput");
+	*index = LIBMPD_MEDIACODEC_ERROR;
+	return NULL;
+}
+
+static void
+mediacodec_release_output(void *codec, int index)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+
+	if (!env)
+		return;
+	(*env)->CallVoidMethod(env, ((struct mediacodec *) codec)->decoder, mc_release_output_id,
+	                       (jint) index);
+	mpd_jni_check_exception(env, "MediaCodecDecoder.releaseOutput");
+}
+
+static void
+mediacodec_flush(void *codec)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+
+	if (!env)
+		return;
+	(*env)->CallVoidMethod(env, ((struct mediacodec *) codec)->decoder, mc_flush_id);
+	mpd_jni_check_exception(env, "MediaCodecDecoder.flush");
+}
+
+static void
+mediacodec_close(void *codec)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+	struct mediacodec *mc = codec;
+
+	if (env) {
+		(*env)->CallVoidMethod(env, mc->decoder, mc_release_id);
+		mpd_jni_check_exception(env, "MediaCodecDecoder.release");
+		(*env)->DeleteGlobalRef(env, mc->info);
+		(*env)->DeleteGlobalRef(env, mc->decoder);
+	}
+	free(mc);
+}
+
+static const struct libmpd_mediacodec mediacodec_ops = {
+	.open = mediacodec_open,
+	.get_input = mediacodec_get_input,
+	.queue_input = mediacodec_queue_input,
+	.get_output = mediacodec_get_output,
+	.release_output = mediacodec_release_output,
+	.flush = mediacodec_flush,
+	.close = mediacodec_close,
+};
+
+/*
+ * Look up MediaCodecDecoder, the mediacodec plugin is disabled if it fails.
+ */
+static void
+mediacodec_init(JNIEnv *env)
+{
+	jclass clazz = (*env)->FindClass(env, "be/deadba/ampd/MediaCodecDecoder");
+
+	if (!clazz)
+		goto error;
+
+#define GET_METHOD(id, name, sig) \
+	if (!(id = (*env)->GetMethodID(env, clazz, name, sig))) \
+		goto error;
+	mc_create_id = (*env)->GetStaticMethodID(env, clazz, "create",
+	        "(Ljava/lang/String;II[B)Lbe/deadba/ampd/MediaCodecDecoder;");
+	if (!mc_create_id)
+		goto error;
+	GET_METHOD(mc_dequeue_input_id, "dequeueInput", "()I");
+	GET_METHOD(mc_get_input_buffer_id, "getInputBuffer", "(I)Ljava/nio/ByteBuffer;");
+	GET_METHOD(mc_queue_input_id, "queueInput", "(IIJZ)Z");
+	GET_METHOD(mc_dequeue_output_id, "dequeueOutput", "([I)I");
+	GET_METHOD(mc_get_output_buffer_id, "getOutputBuffer", "(I)Ljava/nio/ByteBuffer;");
+	GET_METHOD(mc_release_output_id, "releaseOutput", "(I)V");
+	GET_METHOD(mc_flush_id, "flush", "()V");
+	GET_METHOD(mc_release_id, "release", "()V");
+#undef GET_METHOD
+
+	mc_class = (*env)->NewGlobalRef(env, clazz);
+	(*env)->DeleteLocalRef(env, clazz);
+	return;
+error:
+	LOGE("can't find MediaCodecDecoder, hardware decoding disabled");
+	(*env)->ExceptionClear(env);
+	if (clazz)
+		(*env)->DeleteLocalRef(env, clazz);
+}
+
+/*
+ * Ring of the jni output. The positions are byte counters that only grow
+ * (modulo 2^32) and size is a power of two: the fill is write_pos - read_pos
+ * and the ring never needs a full/empty flag. write_pos is only stored by mpd
+ * and read_pos by the java writer, with release/acquire ordering so that the
+ * data is visible before the position that publishes it.
+ */
+struct jni_output {
+	uint32_t write_pos;
+	uint32_t read_pos;
+	/* set by mpd to drop the ring content, cleared by the java writer */
+	int cancel;
+	/* set by the java writer when it stops on an error, see nativeFail() */
+	int failed;
+	uint32_t size;
+	unsigned bytes_per_ms;
+	uint8_t *data;
+	jobject java;
+};
+
+#define JNI_OUTPUT_MIN_SIZE (16 * 1024)
+#define JNI_OUTPUT_POLL_US 2000
+#define JNI_OUTPUT_CANCEL_TIMEOUT_US 500000
+/* returned by JniAudioOutput.nativePeek() */
+#define JNI_OUTPUT_CANCELED -1
+
+static uint32_t
+jni_output_get_fill(struct jni_output *ring)
+{
+	return __atomic_load_n(&ring->write_pos, __ATOMIC_ACQUIRE)
+	       - __atomic_load_n(&ring->read_pos, __ATOMIC_ACQUIRE);
+}
+
+static void *
+jni_output_open(unsigned sample_rate, unsigned channels, unsigned bits,
+                unsigned buffer_time)
+{
+	JNIEnv *env = mpd_jni_get_thread_env();
+	struct jni_output *ring;
+	size_t wanted;
+	jobject buffer, java;
+
+	if (!env || !jo_class || bits != 16)
+		return NULL;
+
+	ring = calloc(1, sizeof(*ring));
+	if (!ring)
+		return NULL;
+	ring->bytes_per_ms = sample_rate * channels * bits / 8 / 1000;
+	if (ring->bytes_per_ms == 0)
+		ring->bytes_per_ms = 1;
+	wanted = (size_t) ring->bytes_per_ms * buffer_time;
+	ring->size = JNI_OUTPUT_MIN_SIZE;
+	while (ring->size < wanted && ring->size < (1U << 24))
+		ring->size <<= 1;
+	ring->data = malloc(ring->size);
+	if (!ring->data)
+		goto error;
+
+	buffer = (*env)->NewDirectByteBuffer(env, ring->data, ring->size);
+	if (!buffer) {
+		mpd_jni_check_exception(env, "NewDirectByteBuffer");
+		goto error;
+	}
+	java = (*env)->CallStaticObjectMethod(env, jo_class, jo_open_id, buffer,
+	                                      (jlong) (intptr_t) ring, (jint) sample_rate,
+	                                      (jint) channels, (jint) bits);
+	(*env)->DeleteLocalRef(env, buffer);
+	if (mpd_jni_check_exception(env, "JniAudioOutput.open") || !java)
+		goto error;
+	ring->java = (*env)->NewGlobalRef(env, java);
+	(*env)->DeleteLocalRef(env, java);
+	return ring;
+error:
+	free(ring->data);
+	free(ring);
+	return NULL;
+}
+
+static int
+jni_output_has_failed(struct jni_output *ring)
+{
+	return __atomic_load_n(&ring->failed, __ATOMIC_ACQUIRE);
+}
+
+static ssize_t
+jni_output_write(void *output, const void *data, size_t size)
+{
+	struct jni_output *ring = output;
+	uint32_t write_pos = ring->write_pos;
+	uint32_t free_size = ring->size - jni_output_get_fill(ring);
+	uint32_t offset = write_pos & (ring->size - 1);
+	uint32_t first;
+
+	/* nothing drains the ring anymore, it would stay full */
+	if (jni_output_has_failed(ring))
+		return -1;
+	if (size > free_size)
+		size = free_size;
+	/* whole samples only */
+	size &= ~(size_t) 1;
+	if (size == 0)
+		return 0;
+
+	first = ring->size - offset;
+	if (first > size)
+		first = size;
+	memcpy(ring->data + offset, data, first);
+	memcpy(ring->data, (const uint8_t *) data + first, size - first);
+	__atomic_store_n(&ring->write_pos, write_pos + size, __ATOMIC_RELEASE);
+	return size;
+}
+
+static unsigned
+jni_output_delay(void *output)
+{
+	struct jni_output *ring = output;
+
+	return jni_output_get_fill(ring) / ring->bytes_per_ms;
+}
+
+static int
+jni_output_drain(void *output)
+{
+	struct jni_output *ring = output;
+	/* the writer may be stuck, don't wait more than twice the ring */
+	unsigned timeout_us = ring->size / ring->bytes_per_ms * 2000;
+
+	while (jni_output_get_fill(ring) > 0 && timeout_us > 0) {
+		if (jni_output_has_failed(ring))
+			return -1;
+		usleep(JNI_OUTPUT_POLL_US);
+		timeout_us = timeout_us > JNI_OUTPUT_POLL_US ? timeout_us - JNI_OUTPUT_POLL_US : 0;
+	}
+	return jni_output_has_failed(ring) ? -1 : 0;
+}
+
+static void
+jni_output_cancel(void *output)
+{
+	struct jni_output *ring = output;
+	unsigned timeout_us = JNI_OUTPUT_CANCEL_TIMEOUT_US;
+
+	/*
+	 * Only the writer moves read_pos: wait until it dropped the content,
+	 * so that the next writes aren't dropped too.
+	 */
+	__atomic_store_n(&ring->cancel, 1, __ATOMIC_RELEASE);
+	while (__atomic_load_n(&ring->cancel, __ATOMIC_ACQUIRE) && timeout_us > 0
+	       && !jni_output_has_failed(ring)) {
+		usleep(JNI_OUTPUT_POLL_US);
+		timeout_us = timeout_us > JNI_OUTPUT_POLL_US ? timeout_us - JNI_OUTPUT_POLL_US : 0;
+	}
+}
+
+static void
+jni_output_close(void *output)
+{
+	struct jni_output *ring = output;
+	JNIEnv *env = mpd_jni_get_thread_env();
+
+	/* JniAudioOutput.close() joins the writer, the ring is unused after it */
+	if (env) {
+		(*env)->CallVoidMethod(env, ring->java, jo_close_id);
+		mpd_jni_check_exception(env, "JniAudioOutput.close");
+		(*env)->DeleteGlobalRef(env, ring->java);
+		free(ring->data);
+		free(ring);
+	} else {
+		LOGE("can't close JniAudioOutput, leaking its ring");
+	}
+}
+
+static const struct libmpd_jni_output jni_output_ops = {
+	.open = jni_output_open,
+	.write = jni_output_write,
+	.delay = jni_output_delay,
+	.drain = jni_output_drain,
+	.cancel = jni_output_cancel,
+	.close = jni_output_close,
+};
+
+/*
+ * Look up JniAudioOutput, the jni output is disabled if it fails.
+ */
+static void
+jni_output_init(JNIEnv *env)
+{
+	jclass clazz = (*env)->FindClass(env, "be/deadba/ampd/JniAudioOutput");
+
+	if (!clazz)
+		goto error;
+	jo_open_id = (*env)->GetStaticMethodID(env, clazz, "open",
+	        "(Ljava/nio/ByteBuffer;JIII)Lbe/deadba/ampd/JniAudioOutput;");
+	if (!jo_open_id)
+		goto error;
+	jo_close_id = (*env)->GetMethodID(env, clazz, "close", "()V");
+	if (!jo_close_id)
+		goto error;
+
+	jo_class = (*env)->NewGlobalRef(env, clazz);
+	(*env)->DeleteLocalRef(env, clazz);
+	return;
+error:
+	LOGE("can't find JniAudioOutput, jni output disabled");
+	(*env)->ExceptionClear(env);
+	if (clazz)
+		(*env)->DeleteLocalRef(env, clazz);
+}
+
+jint
+Java_be_deadba_ampd_JniAudioOutput_nativePeek(JNIEnv *env, jclass clazz, jlong jring)
+{
+	struct jni_output *ring = (struct jni_output *) (intptr_t) jring;
+	uint32_t read_pos = ring->read_pos;
+	uint32_t fill, offset;
+
+	if (__atomic_load_n(&ring->cancel, __ATOMIC_ACQUIRE)) {
+		__atomic_store_n(&ring->read_pos,
+		                 __atomic_load_n(&ring->write_pos, __ATOMIC_ACQUIRE),
+		                 __ATOMIC_RELEASE);
+		__atomic_store_n(&ring->cancel, 0, __ATOMIC_RELEASE);
+		return JNI_OUTPUT_CANCELED;
+	}
+
+	fill = __atomic_load_n(&ring->write_pos, __ATOMIC_ACQUIRE) - read_pos;
+	offset = read_pos & (ring->size - 1);
+	if (fill > ring->size - offset)
+		fill = ring->size - offset;
+	return fill;
+}
+
+jint
+Java_be_deadba_ampd_JniAudioOutput_nativeGetReadOffset(JNIEnv *env, jclass clazz, jlong jring)
+{
+	struct jni_output *ring = (struct jni_output *) (intptr_t) jring;
+
+	return ring->read_pos & (ring->size - 1);
+}
+
 void
-Java_be_deadba_ampd_LibMPD_init(JNIEnv *env)
+Java_be_deadba_ampd_JniAudioOutput_nativeConsume(JNIEnv *env, jclass clazz, jlong jring,
+                                                 jint size)
+{
+	struct jni_output *ring = (struct jni_output *) (intptr_t) jring;
+
+	__atomic_store_n(&ring->read_pos, ring->read_pos + size, __ATOMIC_RELEASE);
+}
+
+jint
+Java_be_deadba_ampd_JniAudioOutput_nativeGetFill(JNIEnv *env, jclass clazz, jlong jring)
 {
-	libmpd_init();
+	return jni_output_get_fill((struct jni_output *) (intptr_t) jring);
 }
 
 void
-Java_be_deadba_ampd_LibMPD_deinit(JNIEnv *env)
+Java_be_deadba_ampd_JniAudioOutput_nativeFail(JNIEnv *env, jclass clazz, jlong jring)
 {
-	libmpd_deinit();
+	struct jni_output *ring = (struct jni_output *) (intptr_t) jring;
+
+	__atomic_store_n(&ring->failed, 1, __ATOMIC_RELEASE);
 }
 
-int
-Java_be_deadba_ampd_LibMPD_run(JNIEnv *env, jobject thiz, jstring mpd_conf)
+static void
+phase_cb(int phase)
+{
+	int attached;
+	JNIEnv *env = mpd_jni_get_env(&attached);
+
+	if (!env || !on_native_phase_id)
+		return;
+
+	(*env)->CallStaticVoidMethod(env, libmpd_class, on_native_phase_id, phase);
+	if ((*env)->ExceptionCheck(env)) {
+		LOGE("onNativePhase(%d) raised an exception", phase);
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+	}
+	mpd_jni_release_env(attached);
+}
+
+jboolean
+Java_be_deadba_ampd_LibMPD_hasPhaseCallback(JNIEnv *env, jclass clazz)
+{
+	return libmpd_set_phase_callback != NULL;
+}
+
+static int
+has_feature(const char *name)
+{
+	/* a libmpd without the hook is built without the optional features */
+	return libmpd_has_feature && libmpd_has_feature(name);
+}
+
+jint
+Java_be_deadba_ampd_LibMPD_nativeGetCapabilities(JNIEnv *env, jclass clazz)
+{
+	jint caps = 0;
+
+	if (libmpd_get_stat)
+		caps |= LIBMPD_CAP_STATS;
+	if (has_feature("libsamplerate"))
+		caps |= LIBMPD_CAP_SAMPLERATE;
+	if (libmpd_set_jni_output && jo_class)
+		caps |= LIBMPD_CAP_JNI_OUTPUT;
+	if (has_feature("vorbisenc"))
+		caps |= LIBMPD_CAP_VORBIS_ENCODER;
+	if (has_feature("lame"))
+		caps |= LIBMPD_CAP_LAME_ENCODER;
+	if (has_feature("zlib"))
+		caps |= LIBMPD_CAP_COMPRESSED_DB;
+	if (libmpd_set_mediacodec && mc_class)
+		caps |= LIBMPD_CAP_MEDIACODEC;
+	return caps;
+}
+
+void
+Java_be_deadba_ampd_LibMPD_nativeGetStats(JNIEnv *env, jclass clazz, jlongArray stats)
+{
+	jlong values[LIBMPD_STAT_COUNT];
+	jsize len = (*env)->GetArrayLength(env, stats);
+	int i;
+
+	if (len > LIBMPD_STAT_COUNT)
+		len = LIBMPD_STAT_COUNT;
+
+	pthread_mutex_lock(&mpd_lock);
+	for (i = 0; i < len; ++i)
+		values[i] = libmpd_get_stat && mpd_state == MPD_STATE_RUNNING ?
+		            libmpd_get_stat(i) : -1;
+	pthread_mutex_unlock(&mpd_lock);
+
+	(*env)->SetLongArrayRegion(env, stats, 0, len, values);
+}
+
+/*
+ * Set the nice value of a thread of the process, return 0 or an errno.
+ */
+jint
+Java_be_deadba_ampd_LibMPD_nativeSetThreadPriority(JNIEnv *env, jclass clazz, jint tid,
+                                                   jint nice)
+{
+	if (setpriority(PRIO_PROCESS, tid, nice) != 0)
+		return errno;
+	return 0;
+}
+
+/*
+ * Restrict a thread of the process to the cpus of mask, return 0 or an errno.
+ * The syscall is used directly: old bionic versions don't provide
+ * sched_setaffinity().
+ */
+jint
+Java_be_deadba_ampd_LibMPD_nativeSetThreadAffinity(JNIEnv *env, jclass clazz, jint tid,
+                                                   jlong mask)
+{
+	unsigned long cpus = (unsigned long) mask;
+
+	if (syscall(__NR_sched_setaffinity, (pid_t) tid, sizeof(cpus), &cpus) != 0)
+		return errno;
+	return 0;
+}
+
+void
+Java_be_deadba_ampd_LibMPD_init(JNIEnv *env, jclass clazz)
+{
+	pthread_mutex_lock(&mpd_lock);
+	if (mpd_state == MPD_STATE_IDLE) {
+		if (libmpd_set_phase_callback)
+			libmpd_set_phase_callback(phase_cb);
+		if (libmpd_set_mediacodec && mc_class)
+			libmpd_set_mediacodec(&mediacodec_ops);
+		if (libmpd_set_jni_output && jo_class)
+			libmpd_set_jni_output(&jni_output_ops);
+		if (libmpd_set_log_handler)
+			libmpd_set_log_handler(mpd_log_handler);
+		libmpd_init();
+		mpd_state = MPD_STATE_INIT;
+		/* a quit of a previous run must not abort this one */
+		mpd_quit_requested = 0;
+	}
+	pthread_mutex_unlock(&mpd_lock);
+}
+
+void
+Java_be_deadba_ampd_LibMPD_deinit(JNIEnv *env, jclass clazz)
+{
+	pthread_mutex_lock(&mpd_lock);
+	if (mpd_state == MPD_STATE_INIT) {
+		libmpd_deinit();
+		mpd_state = MPD_STATE_IDLE;
+	}
+	mpd_quit_requested = 0;
+	pthread_mutex_unlock(&mpd_lock);
+}
+
+jint
+Java_be_deadba_ampd_LibMPD_run(JNIEnv *env, jclass clazz, jstring mpd_conf)
 {
 	int ret;
-	const char *c_mpd_conf = (*env)->GetStringUTFChars(env, mpd_conf, NULL);
-	const char *mpd_argv[MPD_ARGC];
+	const char *c_mpd_conf;
+	char *mpd_argv[MPD_ARGC];
+
+	pthread_mutex_lock(&mpd_lock);
+	if (mpd_state != MPD_STATE_INIT) {
+		pthread_mutex_unlock(&mpd_lock);
+		LOGE("run: libmpd not initialized");
+		return -1;
+	}
+	if (mpd_quit_requested) {
+		pthread_mutex_unlock(&mpd_lock);
+		LOGD("run: quit requested before start");
+		return 0;
+	}
+	mpd_state = MPD_STATE_RUNNING;
+	pthread_mutex_unlock(&mpd_lock);
+
+	c_mpd_conf = (*env)->GetStringUTFChars(env, mpd_conf, NULL);
+	if (!c_mpd_conf) {
+		ret = -1;
+		goto end;
+	}
 
 	mpd_argv[0] = "libmpd";
-	mpd_argv[1] = c_mpd_conf;
+	mpd_argv[1] = (char *) c_mpd_conf;
+
+	ret = libmpd_run(MPD_ARGC, mpd_argv);
 
-	mpd_argv[1] = c_mpd_conf;
-	return libmpd_run(MPD_ARGC, mpd_argv);
+	(*env)->ReleaseStringUTFChars(env, mpd_conf, c_mpd_conf);
+end:
+	pthread_mutex_lock(&mpd_lock);
+	mpd_state = MPD_STATE_INIT;
+	pthread_mutex_unlock(&mpd_lock);
+	return ret;
 }
 
 void
-Java_be_deadba_ampd_LibMPD_quit(JNIEnv *env)
+Java_be_deadba_ampd_LibMPD_quit(JNIEnv *env, jclass clazz)
 {
-	libmpd_quit();
+	pthread_mutex_lock(&mpd_lock);
+	if (mpd_state == MPD_STATE_RUNNING)
+		libmpd_quit();
+	else
+		mpd_quit_requested = 1;
+	pthread_mutex_unlock(&mpd_lock);
 }
 
 jint
@@ -83,6 +964,29 @@ JNI_OnLoad(JavaVM* vm, void* reserved)
 		goto bail;
 	}
 
+	clazz = (*env)->FindClass(env, "be/deadba/ampd/LibMPD");
+	if (!clazz) {
+		LOGE("can't find LibMPD class");
+		goto bail;
+	}
+	libmpd_class = (*env)->NewGlobalRef(env, clazz);
+	(*env)->DeleteLocalRef(env, clazz);
+
+	on_native_phase_id = (*env)->GetStaticMethodID(env, libmpd_class,
+	                                               "onNativePhase", "(I)V");
+	if (!on_native_phase_id) {
+		LOGE("can't find LibMPD.onNativePhase");
+		goto bail;
+	}
+
+	if (pthread_key_create(&thread_env_key, thread_env_destroy) != 0) {
+		LOGE("can't create the thread env key");
+		goto bail;
+	}
+	mediacodec_init(env);
+	jni_output_init(env);
+
+	mpd_vm = vm;
 	result = JNI_VERSION_1_4;
 bail:
 	return result;
@@ -91,4 +995,19 @@ bail:
 void
 JNI_OnUnload(JavaVM* vm, void* reserved)
 {
+	JNIEnv* env = NULL;
+
+	if ((*vm)->GetEnv(vm, (void**) &env, JNI_VERSION_1_4) == JNI_OK) {
+		if (libmpd_class)
+			(*env)->DeleteGlobalRef(env, libmpd_class);
+		if (mc_class)
+			(*env)->DeleteGlobalRef(env, mc_class);
+		if (jo_class)
+			(*env)->DeleteGlobalRef(env, jo_class);
+	}
+	libmpd_class = NULL;
+	mc_class = NULL;
+	jo_class = NULL;
+	on_native_phase_id = NULL;
+	mpd_vm = NULL;
 }
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
+#include <time.h>
+#include <pthread.h>
+#include <sys/time.h>
+
+#include <jni.h>
+#include <android/log.h>
+
+#include "mpd_log.h"
+
+#define LOG_TAG "mpd_log"
+
+#define LOGE(format, args...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, format, ##args);
+
+#define LOG_RING_LINES 1024
+#define LOG_MESSAGE_SIZE 200
+#define LOG_DOMAIN_SIZE 16
+/* the last domain is shared by the domains that don't fit */
+#define LOG_DOMAINS 32
+/* "MM-DD HH:MM:SS.mmm L domain: message\n" */
+#define LOG_LINE_SIZE (19 + 3 + LOG_DOMAIN_SIZE + 2 + LOG_MESSAGE_SIZE + 1)
+
+/* rate limit of the lines below LIBMPD_LOG_WARNING, per domain */
+#define LOG_RATE 20 /* lines/s */
+#define LOG_BURST 100 /* lines */
+
+struct log_line {
+	int64_t time_ms;
+	int level;
+	char domain[LOG_DOMAIN_SIZE];
+	char message[LOG_MESSAGE_SIZE];
+};
+
+struct log_domain {
+	char name[LOG_DOMAIN_SIZE];
+	/* -1: log_default_level */
+	int level;
+	/* token bucket of the rate limit */
+	int tokens;
+	int64_t refill_ms;
+	unsigned suppressed;
+};
+
+static pthread_mutex_t log_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct log_line log_ring[LOG_RING_LINES];
+/* number of lines written and flushed since the start, log_ring index modulo */
+static uint32_t log_head = 0;
+static uint32_t log_flushed = 0;
+static struct log_domain log_domains[LOG_DOMAINS];
+static int log_domain_count = 0;
+static int log_default_level = LIBMPD_LOG_DEFAULT;
+static char *log_path = NULL;
+static long log_max_size = 0;
+
+static int64_t
+now_ms(void)
+{
+	struct timeval tv;
+
+	gettimeofday(&tv, NULL);
+	return (int64_t) tv.tv_sec * 1000 + tv.tv_usec / 1000;
+}
+
+static void
+copy_string(char *dst, const char *src, size_t size)
+{
+	strncpy(dst, src, size - 1);
+	dst[size - 1] = '\0';
+}
+
+/* called with log_lock held */
+static struct log_domain *
+get_domain(const char *name)
+{
+	struct log_domain *domain;
+	int i;
+
+	for (i = 0; i < log_domain_count; ++i) {
+		if (strncmp(log_domains[i].name, name, LOG_DOMAIN_SIZE - 1) == 0)
+			return &log_domains[i];
+	}
+	if (log_domain_count == LOG_DOMAINS)
+		return &log_domains[LOG_DOMAINS - 1];
+
+	domain = &log_domains[log_domain_count++];
+	copy_string(domain->name, log_domain_count == LOG_DOMAINS ? "other" : name,
+	            LOG_DOMAIN_SIZE);
+	domain->level = -1;
+	domain->tokens = LOG_BURST;
+	domain->refill_ms = now_ms();
+	domain->suppressed = 0;
+	return domain;
+}
+
+/* called with log_lock held */
+static int
+take_token(struct log_domain *domain, int64_t now)
+{
+	int64_t tokens = (now - domain->refill_ms) * LOG_RATE / 1000;
+
+	if (tokens > 0) {
+		if (domain->tokens + tokens >= LOG_BURST) {
+			domain->tokens = LOG_BURST;
+			domain->refill_ms = now;
+		} else {
+			domain->tokens += tokens;
+			domain->refill_ms += tokens * 1000 / LOG_RATE;
+		}
+	}
+	if (domain->tokens == 0)
+		return 0;
+	domain->tokens--;
+	return 1;
+}
+
+/* called with log_lock held */
+static void
+push_line(int64_t time_ms, int level, const char *domain, const char *message)
+{
+	struct log_line *line = &log_ring[log_head % LOG_RING_LINES];
+	size_t len;
+
+	line->time_ms = time_ms;
+	line->level = level;
+	copy_string(line->domain, domain, LOG_DOMAIN_SIZE);
+	copy_string(line->message, message, LOG_MESSAGE_SIZE);
+	len = strlen(line->message);
+	while (len > 0 && line->message[len - 1] == '\n')
+		line->message[--len] = '\0';
+	log_head++;
+}
+
+/*
+ * Format a line into buffer (of LOG_LINE_SIZE bytes), without the newline.
+ */
+static void
+format_line(const struct log_line *line, char *buffer)
+{
+	static const char levels[] = "DINWE";
+	time_t seconds = line->time_ms / 1000;
+	struct tm tm;
+	size_t len;
+
+	localtime_r(&seconds, &tm);
+	len = strftime(buffer, LOG_LINE_SIZE, "%m-%d %H:%M:%S", &tm);
+	snprintf(buffer + len, LOG_LINE_SIZE - len, ".%03d %c %s: %s",
+	         (int) (line->time_ms % 1000), levels[line->level], line->domain,
+	         line->message);
+}
+
+/*
+ * Append the lines that were not flushed yet to the log file, the file is
+ * rotated to log_path.1 once it reaches log_max_size. Called with log_lock
+ * held.
+ */
+static void
+flush_locked(void)
+{
+	char buffer[LOG_LINE_SIZE];
+	FILE *file;
+	uint32_t i;
+
+	if (!log_path || log_flushed == log_head)
+		return;
+
+	file = fopen(log_path, "a");
+	if (!file) {
+		LOGE("can't open %s", log_path);
+		return;
+	}
+	if (ftell(file) >= log_max_size) {
+		char *rotated = malloc(strlen(log_path) + 3);
+
+		fclose(file);
+		if (rotated) {
+			sprintf(rotated, "%s.1", log_path);
+			rename(log_path, rotated);
+			free(rotated);
+		}
+		file = fopen(log_path, "w");
+		if (!file) {
+			LOGE("can't open %s", log_path);
+			return;
+		}
+	}
+
+	if (log_head - log_flushed > LOG_RING_LINES) {
+		fprintf(file, "--- %u lines lost\n", log_head - log_flushed - LOG_RING_LINES);
+		log_flushed = log_head - LOG_RING_LINES;
+	}
+	for (i = log_flushed; i != log_head; ++i) {
+		format_line(&log_ring[i % LOG_RING_LINES], buffer);
+		fprintf(file, "%s\n", buffer);
+	}
+	fclose(file);
+	log_flushed = log_head;
+}
+
+void
+mpd_log_handler(const char *domain_name, int level, const char *message)
+{
+	struct log_domain *domain;
+	int64_t now;
+	int threshold;
+
+	if (!message)
+		return;
+	if (!domain_name)
+		domain_name = "mpd";
+	if (level < LIBMPD_LOG_DEBUG)
+		level = LIBMPD_LOG_DEBUG;
+	else if (level > LIBMPD_LOG_ERROR)
+		level = LIBMPD_LOG_ERROR;
+
+	pthread_mutex_lock(&log_lock);
+	domain = get_domain(domain_name);
+	threshold = domain->level >= 0 ? domain->level : log_default_level;
+	if (level < threshold) {
+		pthread_mutex_unlock(&log_lock);
+		return;
+	}
+
+	now = now_ms();
+	if (level < LIBMPD_LOG_WARNING && !take_token(domain, now)) {
+		domain->suppressed++;
+		pthread_mutex_unlock(&log_lock);
+		return;
+	}
+	if (domain->suppressed > 0) {
+		char suppressed[64];
+
+		snprintf(suppressed, sizeof(suppressed), "%u lines suppressed",
+		         domain->suppressed);
+		push_line(now, LIBMPD_LOG_WARNING, domain->name, suppressed);
+		domain->suppressed = 0;
+	}
+	push_line(now, level, domain->name, message);
+	if (level >= LIBMPD_LOG_ERROR)
+		flush_locked();
+	pthread_mutex_unlock(&log_lock);
+
+	/* warnings and errors still reach logcat */
+	if (level >= LIBMPD_LOG_WARNING)
+		__android_log_print(level == LIBMPD_LOG_ERROR ? ANDROID_LOG_ERROR : ANDROID_LOG_WARN,
+		                    domain_name, "%s", message);
+}
+
+/*
+ * Replace the bytes that are not valid modified UTF-8 (for NewStringUTF) by
+ * '?': file names are not always UTF-8.
+ */
+static void
+sanitize_utf8(char *str)
+{
+	unsigned char *p = (unsigned char *) str;
+
+	while (*p) {
+		int len = *p < 0x80 ? 1 : (*p & 0xe0) == 0xc0 ? 2 : (*p & 0xf0) == 0xe0 ? 3 : 0;
+		int i;
+
+		for (i = 1; i < len; ++i) {
+			if ((p[i] & 0xc0) != 0x80) {
+				len = 0;
+				break;
+			}
+		}
+		if (len == 0) {
+			*p++ = '?';
+			continue;
+		}
+		p += len;
+	}
+}
+
+jboolean
+Java_be_deadba_ampd_LibMPD_hasLogHandler(JNIEnv *env, jclass clazz)
+{
+	return libmpd_set_log_handler != NULL;
+}
+
+void
+Java_be_deadba_ampd_LibMPD_nativeConfigureLog(JNIEnv *env, jclass clazz, jstring jpath,
+                                              jlong max_size, jint level)
+{
+	const char *path = jpath ? (*env)->GetStringUTFChars(env, jpath, NULL) : NULL;
+	int i;
+
+	pthread_mutex_lock(&log_lock);
+	free(log_path);
+	log_path = path ? strdup(path) : NULL;
+	log_max_size = max_size;
+	log_default_level = level;
+	for (i = 0; i < log_domain_count; ++i)
+		log_domains[i].level = -1;
+	pthread_mutex_unlock(&log_lock);
+
+	if (path)
+		(*env)->ReleaseStringUTFChars(env, jpath, path);
+}
+
+void
+Java_be_deadba_ampd_LibMPD_nativeSetLogLevel(JNIEnv *env, jclass clazz, jstring jdomain,
+                                             jint level)
+{
+	const char *domain = (*env)->GetStringUTFChars(env, jdomain, NULL);
+
+	if (!domain)
+		return;
+	pthread_mutex_lock(&log_lock);
+	get_domain(domain)->level = level;
+	pthread_mutex_unlock(&log_lock);
+	(*env)->ReleaseStringUTFChars(env, jdomain, domain);
+}
+
+void
+Java_be_deadba_ampd_LibMPD_nativeFlushLog(JNIEnv *env, jclass clazz)
+{
+	pthread_mutex_lock(&log_lock);
+	flush_locked();
+	pthread_mutex_unlock(&log_lock);
+}
+
+/*
+ * Return the last max_lines lines of the ring, oldest first. The lines are
+ * formatted with the lock held and the strings created after.
+ */
+jobjectArray
+Java_be_deadba_ampd_LibMPD_nativeGetLog(JNIEnv *env, jclass clazz, jint max_lines)
+{
+	jclass string_class;
+	jobjectArray array = NULL;
+	char *lines;
+	uint32_t count, i;
+
+	if (max_lines < 0)
+		max_lines = 0;
+	lines = malloc((size_t) (max_lines > LOG_RING_LINES ? LOG_RING_LINES : max_lines)
+	               * LOG_LINE_SIZE + 1);
+	if (!lines)
+		return NULL;
+
+	pthread_mutex_lock(&log_lock);
+	count = log_head < LOG_RING_LINES ? log_head : LOG_RING_LINES;
+	if (count > (uint32_t) max_lines)
+		count = max_lines;
+	for (i = 0; i < count; ++i)
+		format_line(&log_ring[(log_head - count + i) % LOG_RING_LINES],
+		            lines + i * LOG_LINE_SIZE);
+	pthread_mutex_unlock(&log_lock);
+
+	string_class = (*env)->FindClass(env, "java/lang/String");
+	if (!string_class)
+		goto end;
+	array = (*env)->NewObjectArray(env, count, string_class, NULL);
+	(*env)->DeleteLocalRef(env, string_class);
+	if (!array)
+		goto end;
+	for (i = 0; i < count; ++i) {
+		jstring line;
+
+		sanitize_utf8(lines + i * LOG_LINE_SIZE);
+		line = (*env)->NewStringUTF(env, lines + i * LOG_LINE_SIZE);
+		if (!line) {
+			(*env)->DeleteLocalRef(env, array);
+			array = NULL;
+			break;
+		}
+		(*env)->SetObjectArrayElement(env, array, i, line);
+		(*env)->DeleteLocalRef(env, line);
+	}
+end:
+	free(lines);
+	return array;
+}
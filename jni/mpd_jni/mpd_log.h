@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef MPD_LOG_H
+#define MPD_LOG_H
+
+/*
+ * Log sink of libmpd: lines are kept in a fixed-size in-memory ring, with a
+ * level per log domain and a rate limit. The ring is only written to the log
+ * file on errors and when asked (LibMPD.flushLog()).
+ */
+
+/* levels, must match LibMPD.LOG_* */
+enum {
+	LIBMPD_LOG_DEBUG = 0,
+	LIBMPD_LOG_INFO = 1,
+	LIBMPD_LOG_DEFAULT = 2,
+	LIBMPD_LOG_WARNING = 3,
+	LIBMPD_LOG_ERROR = 4,
+};
+
+/* optional libmpd API, see mpd_jni.c */
+void libmpd_set_log_handler(void (*handler)(const char *domain, int level,
+                                            const char *message)) __attribute__((weak));
+
+void mpd_log_handler(const char *domain, int level, const char *message);
+
+#endif
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Tuning of the sticker database of mpd.
+ *
+ * mpd opens sticker_file with its own settings: the rollback journal and
+ * synchronous=FULL, every sticker write is a transaction with several fsyncs
+ * done from the main loop. An sqlite auto extension, called for each
+ * connection that the process opens, tunes the connection to sticker_file:
+ *
+ *  - journal_mode=WAL: a commit appends to the WAL, with synchronous=NORMAL
+ *    it is not synced (a power loss can lose the last commits, it doesn't
+ *    corrupt the database);
+ *  - the WAL is checkpointed (the writes that sync) by a background thread,
+ *    on a timer or once the WAL reaches CHECKPOINT_FRAMES pages, instead of
+ *    by the committing thread;
+ *  - cache_size, in KB.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <time.h>
+#include <pthread.h>
+#include <sys/time.h>
+
+#include <jni.h>
+#include <android/log.h>
+#include <sqlite3.h>
+
+#define LOG_TAG "mpd_sticker"
+
+#define LOGD(format, args...)  __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, format, ##args);
+#define LOGE(format, args...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, format, ##args);
+
+/* must match LibMPD.STICKER_* */
+#define STICKER_WAL 1
+#define STICKER_SYNC_NORMAL 2
+
+#define CHECKPOINT_INTERVAL 10 /* s */
+#define CHECKPOINT_FRAMES 1000 /* like SQLITE_DEFAULT_WAL_AUTOCHECKPOINT */
+
+static pthread_mutex_t sticker_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t sticker_cond = PTHREAD_COND_INITIALIZER;
+static char *sticker_path = NULL;
+static int sticker_flags = 0;
+static int sticker_cache_kb = 0;
+
+static int checkpoint_started = 0;
+static pthread_t checkpoint_thread;
+/* frames in the WAL at the last commit, 0 once checkpointed */
+static int checkpoint_frames = 0;
+static int checkpoint_now = 0;
+
+static int
+get_int_cb(void *arg, int argc, char **values, char **names)
+{
+	if (argc > 0 && values[0])
+		*(int *) arg = atoi(values[0]);
+	return 0;
+}
+
+static int
+get_string_cb(void *arg, int argc, char **values, char **names)
+{
+	if (argc > 0 && values[0])
+		snprintf(arg, 16, "%s", values[0]);
+	return 0;
+}
+
+/* PRAGMA database_list: seq, name, file */
+static int
+is_main_cb(void *arg, int argc, char **values, char **names)
+{
+	const char *path = arg;
+
+	if (argc >= 3 && values[1] && values[2] && strcmp(values[1], "main") == 0
+	    && strcmp(values[2], path) == 0)
+		return 1; /* match: abort the query */
+	return 0;
+}
+
+static void
+checkpoint(const char *path)
+{
+	sqlite3 *db = NULL;
+	int ret;
+
+	/*
+	 * A connection of its own, so that the connection of mpd stays usable
+	 * while the checkpoint syncs, closed after it: journal_mode can only
+	 * be changed back by a connection that is alone. A passive checkpoint
+	 * doesn't wait for the readers and writers.
+	 */
+	if (sqlite3_open_v2(path, &db, SQLITE_OPEN_READWRITE, NULL) != SQLITE_OK) {
+		LOGE("can't open %s: %s", path, db ? sqlite3_errmsg(db) : "no memory");
+		sqlite3_close(db);
+		return;
+	}
+	ret = sqlite3_wal_checkpoint(db, NULL);
+	if (ret != SQLITE_OK && ret != SQLITE_BUSY)
+		LOGE("checkpoint failed: %d", ret);
+	sqlite3_close(db);
+}
+
+static void *
+checkpoint_run(void *arg)
+{
+	char *path = NULL;
+
+	pthread_mutex_lock(&sticker_lock);
+	for (;;) {
+		struct timeval now;
+		struct timespec deadline;
+
+		gettimeofday(&now, NULL);
+		deadline.tv_sec = now.tv_sec + CHECKPOINT_INTERVAL;
+		deadline.tv_nsec = now.tv_usec * 1000;
+		while (!checkpoint_now) {
+			if (pthread_cond_timedwait(&sticker_cond, &sticker_lock, &deadline) == ETIMEDOUT)
+				break;
+		}
+		checkpoint_now = 0;
+		if (checkpoint_frames == 0)
+			continue;
+		checkpoint_frames = 0;
+		free(path);
+		path = sticker_path ? strdup(sticker_path) : NULL;
+		pthread_mutex_unlock(&sticker_lock);
+
+		if (path)
+			checkpoint(path);
+
+		pthread_mutex_lock(&sticker_lock);
+	}
+	/* not reached: the thread lives as long as the process */
+	return NULL;
+}
+
+static int
+wal_hook(void *arg, sqlite3 *db, const char *name, int frames)
+{
+	pthread_mutex_lock(&sticker_lock);
+	checkpoint_frames = frames;
+	if (frames >= CHECKPOINT_FRAMES) {
+		checkpoint_now = 1;
+		pthread_cond_signal(&sticker_cond);
+	}
+	pthread_mutex_unlock(&sticker_lock);
+	return SQLITE_OK;
+}
+
+static void
+exec_pragma(sqlite3 *db, const char *pragma)
+{
+	char *error = NULL;
+
+	if (sqlite3_exec(db, pragma, NULL, NULL, &error) != SQLITE_OK) {
+		LOGE("%s: %s", pragma, error ? error : "failed");
+		sqlite3_free(error);
+	}
+}
+
+static int
+sticker_tune(sqlite3 *db, char **error, const void *api)
+{
+	char pragma[64];
+	char journal_mode[16] = "";
+	int page_size = 0, flags, cache_kb;
+	char *path;
+
+	pthread_mutex_lock(&sticker_lock);
+	if (!sticker_path
+	    || (checkpoint_started && pthread_equal(pthread_self(), checkpoint_thread))) {
+		pthread_mutex_unlock(&sticker_lock);
+		return SQLITE_OK;
+	}
+	path = strdup(sticker_path);
+	flags = sticker_flags;
+	cache_kb = sticker_cache_kb;
+	pthread_mutex_unlock(&sticker_lock);
+
+	/* other databases of the process are left alone */
+	if (!path || sqlite3_exec(db, "PRAGMA database_list", is_main_cb, path, NULL) != SQLITE_ABORT) {
+		free(path);
+		return SQLITE_OK;
+	}
+
+	if (cache_kb > 0) {
+		sqlite3_exec(db, "PRAGMA page_size", get_int_cb, &page_size, NULL);
+		if (page_size > 0) {
+			snprintf(pragma, sizeof(pragma), "PRAGMA cache_size=%d",
+			         cache_kb * 1024 / page_size);
+			exec_pragma(db, pragma);
+		}
+	}
+
+	sqlite3_exec(db, (flags & STICKER_WAL) ? "PRAGMA journal_mode=WAL"
+	                                       : "PRAGMA journal_mode=DELETE",
+	             get_string_cb, journal_mode, NULL);
+	exec_pragma(db, (flags & STICKER_SYNC_NORMAL) ? "PRAGMA synchronous=NORMAL"
+	                                              : "PRAGMA synchronous=FULL");
+
+	if (strcmp(journal_mode, "wal") == 0) {
+		/* replaces the automatic checkpoint */
+		sqlite3_wal_hook(db, wal_hook, NULL);
+		pthread_mutex_lock(&sticker_lock);
+		if (!checkpoint_started) {
+			if (pthread_create(&checkpoint_thread, NULL, checkpoint_run, NULL) == 0)
+				checkpoint_started = 1;
+			else
+				LOGE("can't create the checkpoint thread");
+		}
+		if (!checkpoint_started)
+			sqlite3_wal_autocheckpoint(db, CHECKPOINT_FRAMES);
+		pthread_mutex_unlock(&sticker_lock);
+	}
+	LOGD("%s: journal_mode %s, synchronous %s, cache %d KB", path, journal_mode,
+	     (flags & STICKER_SYNC_NORMAL) ? "normal" : "full", cache_kb);
+	free(path);
+	return SQLITE_OK;
+}
+
+/*
+ * Called before mpd starts: the connection opened by mpd is tuned.
+ */
+void
+Java_be_deadba_ampd_LibMPD_nativeConfigureSticker(JNIEnv *env, jclass clazz, jstring jpath,
+                                                  jint flags, jint cache_kb)
+{
+	const char *path = (*env)->GetStringUTFChars(env, jpath, NULL);
+
+	if (!path)
+		return;
+	pthread_mutex_lock(&sticker_lock);
+	free(sticker_path);
+	sticker_path = strdup(path);
+	sticker_flags = flags;
+	sticker_cache_kb = cache_kb;
+	pthread_mutex_unlock(&sticker_lock);
+	(*env)->ReleaseStringUTFChars(env, jpath, path);
+
+	/* registering the same entry point again is a no-op */
+	sqlite3_auto_extension((void (*)(void)) sticker_tune);
+}
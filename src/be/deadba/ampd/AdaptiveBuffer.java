@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Size the mpd buffers from the underruns of the previous runs.
+ *
+ * The buffer level is persisted in the preferences: each level doubles the
+ * audio buffer size and the buffer time of the jni output. The level is
+ * raised when the native underrun counter increases, up to a cap depending
+ * on the memory class of the device, and lowered after STABLE_TIME without
+ * underruns to cut the latency. Without the counter (LibMPD.CAP_STATS), the
+ * level stays at its default for the device. Buffer sizes are read by mpd at
+ * startup, so a new level is applied on the next start and doesn't make a
+ * reload restart mpd (see MPDConf.StartupEntry).
+ */
+public class AdaptiveBuffer {
+    private static final String TAG = "AdaptiveBuffer";
+    private static final String LEVEL_KEY = "adaptive_buffer_level";
+    private static final int MIN_BUFFER_SIZE = 1024; // in KiB
+    private static final int MAX_BUFFER_SIZE = 16384; // in KiB
+    private static final int MIN_BUFFER_TIME = 100; // in ms
+    private static final long STABLE_TIME = 2 * 60 * 60 * 1000; // in ms
+
+    public static final long SAMPLE_INTERVAL = 60 * 1000; // in ms
+
+    private final Context mContext;
+    private final long[] mStats = new long[LibMPD.STAT_COUNT];
+    private long mLastUnderruns = -1;
+    private long mStableTime = 0;
+
+    public AdaptiveBuffer(Context ctx) {
+        mContext = ctx;
+    }
+
+    /*
+     * The audio buffer is allocated by mpd at startup: keep it under a
+     * quarter of the memory class of the device.
+     */
+    private static int getMaxLevel(Context ctx) {
+        ActivityManager am = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
+        int cap = Math.min(am.getMemoryClass() * 1024 / 4, MAX_BUFFER_SIZE);
+        int level = 0;
+        while ((MIN_BUFFER_SIZE << (level + 1)) <= cap)
+            level++;
+        return level;
+    }
+
+    /*
+     * Level of the first run: slow devices start with more margin, fast ones
+     * with less latency.
+     */
+    private static int getDefaultLevel() {
+        switch (CpuFeatures.getPerformanceClass()) {
+            case CpuFeatures.CLASS_LOW:
+                return 2;
+            case CpuFeatures.CLASS_HIGH:
+                return 0;
+            default:
+                return 1;
+        }
+    }
+
+    public static int getLevel(Context ctx) {
+        int level = MPDConf.getSharedPreferences(ctx).getInt(LEVEL_KEY, getDefaultLevel());
+        return Math.max(0, Math.min(level, getMaxLevel(ctx)));
+    }
+
+    private static void setLevel(Context ctx, int level) {
+        SharedPreferences.Editor editor = MPDConf.getSharedPreferences(ctx).edit();
+        editor.putInt(LEVEL_KEY, level);
+        editor.commit();
+    }
+
+    /**
+     * @return the audio buffer size of a level, in KiB
+     */
+    public static int getBufferSize(int level) {
+        return MIN_BUFFER_SIZE << level;
+    }
+
+    /**
+     * @return the buffer time of the jni output of a level, in ms
+     */
+    public static int getBufferTime(int level) {
+        return MIN_BUFFER_TIME << level;
+    }
+
+    /**
+     * Forget the counters of the previous run.
+     */
+    public void reset() {
+        mLastUnderruns = -1;
+        mStableTime = 0;
+    }
+
+    /**
+     * Read the underrun counter, must be called every SAMPLE_INTERVAL while
+     * mpd is running.
+     */
+    public void sample() {
+        LibMPD.getStats(mStats);
+        final long underruns = mStats[LibMPD.STAT_UNDERRUNS];
+        if (underruns < 0)
+            return;
+
+        if (mLastUnderruns >= 0 && underruns > mLastUnderruns) {
+            final int level = getLevel(mContext);
+            if (level < getMaxLevel(mContext)) {
+                Log.d(TAG, (underruns - mLastUnderruns) + " underruns, level: " + (level + 1));
+                setLevel(mContext, level + 1);
+            }
+            mStableTime = 0;
+        } else if (mLastUnderruns >= 0) {
+            mStableTime += SAMPLE_INTERVAL;
+            if (mStableTime >= STABLE_TIME) {
+                final int level = getLevel(mContext);
+                if (level > 0) {
+                    Log.d(TAG, "no underruns, level: " + (level - 1));
+                    setLevel(mContext, level - 1);
+                }
+                mStableTime = 0;
+            }
+        }
+        mLastUnderruns = underruns;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Send the service events to the registered IMPDServiceCallback clients.
+ *
+ * Each client has its own bounded queue: when a client doesn't keep up, its
+ * oldest events are dropped. Events are sent by one dispatcher thread, in
+ * one oneway onEvents() call per client with all its pending events, so that
+ * the threads posting events never wait for a client.
+ */
+public class CallbackDispatcher {
+    private static final String TAG = "CallbackDispatcher";
+    private static final int QUEUE_SIZE = 32;
+
+    /* events sent to IMPDServiceCallback.onEvents() */
+    public static final int EVENT_START = 0; // mpd is ready to serve clients
+    public static final int EVENT_PHASE = 1; // arg: LibMPD.PHASE_*
+    public static final int EVENT_STOP = 2; // arg: 1 if mpd stopped on error
+    public static final int EVENT_ADDRESSES = 3; // see IMPDService.getAddresses()
+    public static final int EVENT_CAPABILITIES = 4; // arg: LibMPD.CAP_* flags, once the libs are loaded
+
+    private static class EventQueue {
+        private final int[] mTypes = new int[QUEUE_SIZE];
+        private final long[] mArgs = new long[QUEUE_SIZE];
+        private int mHead = 0;
+        private int mCount = 0;
+        private int mDropped = 0;
+
+        void add(int type, long arg) {
+            if (mCount == QUEUE_SIZE) {
+                mHead = (mHead + 1) % QUEUE_SIZE;
+                mCount--;
+                mDropped++;
+            }
+            final int idx = (mHead + mCount) % QUEUE_SIZE;
+            mTypes[idx] = type;
+            mArgs[idx] = arg;
+            mCount++;
+        }
+    }
+
+    private final Map<IBinder, EventQueue> mQueues = new HashMap<IBinder, EventQueue>();
+    private final RemoteCallbackList<IMPDServiceCallback> mCallbacks =
+            new RemoteCallbackList<IMPDServiceCallback>() {
+        @Override
+        public void onCallbackDied(IMPDServiceCallback cb, Object cookie) {
+            synchronized (mQueues) {
+                mQueues.remove(cb.asBinder());
+            }
+        }
+    };
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private boolean mScheduled = false; // guarded by mQueues
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    public CallbackDispatcher() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void register(IMPDServiceCallback cb) {
+        synchronized (mQueues) {
+            EventQueue queue = new EventQueue();
+            if (mCallbacks.register(cb, queue))
+                mQueues.put(cb.asBinder(), queue);
+        }
+    }
+
+    public void unregister(IMPDServiceCallback cb) {
+        synchronized (mQueues) {
+            mCallbacks.unregister(cb);
+            mQueues.remove(cb.asBinder());
+        }
+    }
+
+    /**
+     * Queue an event for all clients, from any thread.
+     */
+    public void post(int type, long arg) {
+        synchronized (mQueues) {
+            if (mQueues.isEmpty())
+                return;
+            for (EventQueue queue : mQueues.values())
+                queue.add(type, arg);
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.post(mDispatch);
+            }
+        }
+    }
+
+    private void dispatch() {
+        synchronized (mQueues) {
+            mScheduled = false;
+        }
+
+        int i = mCallbacks.beginBroadcast();
+        while (i > 0) {
+            i--;
+            final EventQueue queue = (EventQueue) mCallbacks.getBroadcastCookie(i);
+            final int[] types;
+            final long[] args;
+            synchronized (mQueues) {
+                if (queue.mCount == 0)
+                    continue;
+                if (queue.mDropped > 0) {
+                    Log.w(TAG, "client too slow, " + queue.mDropped + " events dropped");
+                    queue.mDropped = 0;
+                }
+                types = new int[queue.mCount];
+                args = new long[queue.mCount];
+                for (int j = 0; j < queue.mCount; ++j) {
+                    final int idx = (queue.mHead + j) % QUEUE_SIZE;
+                    types[j] = queue.mTypes[idx];
+                    args[j] = queue.mArgs[idx];
+                }
+                queue.mHead = 0;
+                queue.mCount = 0;
+            }
+            try {
+                mCallbacks.getBroadcastItem(i).onEvents(types, args);
+            } catch (RemoteException e) {
+            }
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    /**
+     * Send the pending events and stop the dispatcher thread.
+     */
+    public void release() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallbacks.kill();
+                mThread.quit();
+            }
+        });
+    }
+}
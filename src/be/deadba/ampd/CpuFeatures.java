@@ -19,14 +19,42 @@
 
 package be.deadba.ampd;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import android.util.Log;
 
+/**
+ * Cpu features and topology.
+ *
+ * The cpu family and instruction sets come from the cpufeatures library of
+ * the NDK, the frequencies from the cpufreq sysfs of each core. Cores are
+ * grouped in clusters by maximum frequency: the cores of a cluster share a
+ * clock, and the clusters of a big.LITTLE SoC have different maximums. The
+ * topology is read once per process.
+ */
 public class CpuFeatures {
     private static final String TAG = "CpuFeatures";
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+    private static final int MAX_CPUS = 64;
+
+    /* see getPerformanceClass() */
+    public static final int CLASS_LOW = 0;
+    public static final int CLASS_MID = 1;
+    public static final int CLASS_HIGH = 2;
+
+    private static final long LOW_FREQUENCY = 1000000; // in kHz
+    private static final long HIGH_FREQUENCY = 1500000; // in kHz
+
+    private static boolean sLoaded = false;
 
     static {
         try {
             System.loadLibrary("cpufeatures_jni");
+            sLoaded = true;
         } catch (UnsatisfiedLinkError ule) {
             Log.e(TAG, "Can't load library: " + ule);
         } catch (SecurityException se) {
@@ -36,4 +64,194 @@ public class CpuFeatures {
     public native static boolean isArm();
     public native static boolean isArmv7a();
     public native static boolean hasNeon();
+    private native static int getCpuCount();
+    private native static boolean isX86();
+    private native static boolean hasSsse3();
+    private native static boolean hasSse4();
+
+    private static long sPossibleCores = -1;
+    private static long[] sMaxFrequencies = null;
+    private static long[] sClusters = null;
+
+    /**
+     * Return the number of cores, online or not.
+     */
+    public static int getCoreCount() {
+        if (sLoaded)
+            return getCpuCount();
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public static boolean hasX86Ssse3() {
+        return sLoaded && isX86() && hasSsse3();
+    }
+
+    /**
+     * Return true if the cpu has SSE4.1 and SSE4.2.
+     */
+    public static boolean hasX86Sse4() {
+        return sLoaded && isX86() && hasSse4();
+    }
+
+    private static String readLine(String path) {
+        BufferedReader reader = null;
+        String line = null;
+        try {
+            reader = new BufferedReader(new FileReader(path), 64);
+            line = reader.readLine();
+        } catch (IOException e) {
+        }
+        try {
+            if (reader != null)
+                reader.close();
+        } catch (IOException e) {
+        }
+        return line != null ? line.trim() : null;
+    }
+
+    /**
+     * Return the mask of the cores that can be present (bit n for core n),
+     * from the "0-3,5" like ranges of the sysfs.
+     */
+    public static synchronized long getPossibleCores() {
+        if (sPossibleCores >= 0)
+            return sPossibleCores;
+
+        final String possible = readLine(CPU_DIR + "/possible");
+        long mask = 0;
+        if (possible != null) {
+            try {
+                for (String range : possible.split(",")) {
+                    final int idx = range.indexOf('-');
+                    final int first = Integer.parseInt(idx > 0 ? range.substring(0, idx) : range);
+                    final int last = idx > 0 ? Integer.parseInt(range.substring(idx + 1)) : first;
+                    for (int cpu = first; cpu <= last && cpu < MAX_CPUS; ++cpu)
+                        mask |= 1L << cpu;
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "can't parse " + CPU_DIR + "/possible: " + possible);
+                mask = 0;
+            }
+        }
+        if (mask == 0) {
+            final int count = Math.min(getCoreCount(), MAX_CPUS);
+            mask = count == MAX_CPUS ? -1L : (1L << count) - 1;
+        }
+        sPossibleCores = mask;
+        return mask;
+    }
+
+    private static synchronized long[] getMaxFrequencies() {
+        if (sMaxFrequencies != null)
+            return sMaxFrequencies;
+
+        final long possible = getPossibleCores();
+        sMaxFrequencies = new long[MAX_CPUS];
+        for (int cpu = 0; cpu < MAX_CPUS; ++cpu) {
+            if ((possible & (1L << cpu)) == 0)
+                continue;
+            final String value = readLine(CPU_DIR + "/cpu" + cpu + "/cpufreq/cpuinfo_max_freq");
+            try {
+                sMaxFrequencies[cpu] = value != null ? Long.parseLong(value) : 0;
+            } catch (NumberFormatException e) {
+            }
+        }
+        return sMaxFrequencies;
+    }
+
+    /**
+     * Return the maximum frequency of a core in kHz, 0 if unknown (the
+     * cpufreq sysfs of an offline core can be missing).
+     */
+    public static long getMaxFrequency(int cpu) {
+        return cpu >= 0 && cpu < MAX_CPUS ? getMaxFrequencies()[cpu] : 0;
+    }
+
+    /**
+     * Return the highest maximum frequency of the cores in kHz, 0 if unknown.
+     */
+    public static long getMaxFrequency() {
+        long max = 0;
+        for (long freq : getMaxFrequencies())
+            max = Math.max(max, freq);
+        return max;
+    }
+
+    /**
+     * Return the masks of the cores of each cluster, fastest cluster first.
+     * Cores with an unknown frequency are not part of any cluster.
+     */
+    public static synchronized long[] getClusters() {
+        if (sClusters != null)
+            return sClusters;
+
+        final long[] freqs = getMaxFrequencies();
+        List<Long> clusterFreqs = new ArrayList<Long>();
+        List<Long> clusters = new ArrayList<Long>();
+        for (int cpu = 0; cpu < MAX_CPUS; ++cpu) {
+            if (freqs[cpu] <= 0)
+                continue;
+            int idx = clusterFreqs.indexOf(freqs[cpu]);
+            if (idx < 0) {
+                // sorted by decreasing frequency
+                idx = 0;
+                while (idx < clusterFreqs.size() && clusterFreqs.get(idx) > freqs[cpu])
+                    idx++;
+                clusterFreqs.add(idx, freqs[cpu]);
+                clusters.add(idx, 0L);
+            }
+            clusters.set(idx, clusters.get(idx) | (1L << cpu));
+        }
+        sClusters = new long[clusters.size()];
+        for (int i = 0; i < sClusters.length; ++i)
+            sClusters[i] = clusters.get(i);
+        return sClusters;
+    }
+
+    /**
+     * Return the mask of the cores of the fastest cluster, or 0 if all the
+     * cores have the same maximum frequency (not a big.LITTLE SoC).
+     */
+    public static long getBigCores() {
+        final long[] clusters = getClusters();
+        return clusters.length > 1 ? clusters[0] : 0;
+    }
+
+    public static boolean isBigLittle() {
+        return getBigCores() != 0;
+    }
+
+    /**
+     * Return CLASS_LOW for single core or slow devices, CLASS_HIGH for fast
+     * quad cores, CLASS_MID otherwise. An unknown frequency is not
+     * considered slow or fast.
+     */
+    public static int getPerformanceClass() {
+        final int cores = getCoreCount();
+        final long freq = getMaxFrequency();
+
+        if (cores <= 1 || (freq > 0 && freq < LOW_FREQUENCY))
+            return CLASS_LOW;
+        if (cores >= 4 && freq >= HIGH_FREQUENCY)
+            return CLASS_HIGH;
+        return CLASS_MID;
+    }
+
+    /**
+     * Return a one line description of the cpu, for the logs.
+     */
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getCoreCount()).append(" cores, class ").append(getPerformanceClass());
+        for (long cluster : getClusters()) {
+            final int cpu = Long.numberOfTrailingZeros(cluster);
+            sb.append(", cluster 0x").append(Long.toHexString(cluster)).append(": ")
+                    .append(getMaxFrequency(cpu) / 1000).append(" MHz");
+        }
+        if (hasX86Ssse3())
+            sb.append(", ssse3");
+        if (hasX86Sse4())
+            sb.append(", sse4");
+        return sb.toString();
+    }
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Keep one mpd database (and state) per music directory.
+ *
+ * Each music directory gets its own cache directory, named after a hash of
+ * its path, so that switching back to a directory already scanned reuses its
+ * database. The least recently used directories are removed when the cache
+ * is bigger than its disk budget.
+ */
+public class DatabaseCache {
+    private static final String TAG = "DatabaseCache";
+    private static final String CACHE_DIR = "db_cache";
+    private static final String PATH_FILE = "music_directory";
+    private static final int GZIP_MAGIC = 0x1f8b;
+
+    private DatabaseCache() {
+    }
+
+    private static String hash(String musicDirectory) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(musicDirectory.getBytes());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; ++i)
+                sb.append(String.format("%02x", digest[i] & 0xff));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(musicDirectory.hashCode());
+        }
+    }
+
+    private static File getRoot(Context ctx) {
+        return new File(ctx.getFilesDir(), CACHE_DIR);
+    }
+
+    /**
+     * Return the cache directory of a music directory (it may not exist).
+     */
+    public static File getDirectory(Context ctx, String musicDirectory) {
+        return new File(getRoot(ctx), hash(musicDirectory));
+    }
+
+    private static long getSize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                size += file.isDirectory() ? getSize(file) : file.length();
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /*
+     * Move the database and state of the previous layout (one database in
+     * the files directory) into the cache of the last music directory.
+     */
+    private static void migrate(Context ctx, File dir, String dbFile, String stateFile) {
+        File oldDb = ctx.getFileStreamPath(dbFile);
+        File oldState = ctx.getFileStreamPath(stateFile);
+
+        if (oldDb.exists() && !oldDb.renameTo(new File(dir, dbFile)))
+            oldDb.delete();
+        if (oldState.exists() && !oldState.renameTo(new File(dir, stateFile)))
+            oldState.delete();
+    }
+
+    /**
+     * Remove the least recently used cache directories (except current) until
+     * the cache fits in budget bytes.
+     */
+    private static void evict(File root, File current, long budget) {
+        File[] dirs = root.listFiles();
+        if (dirs == null)
+            return;
+
+        long[] sizes = new long[dirs.length];
+        long total = 0;
+        for (int i = 0; i < dirs.length; ++i) {
+            sizes[i] = getSize(dirs[i]);
+            total += sizes[i];
+        }
+
+        while (total > budget) {
+            int lru = -1;
+            for (int i = 0; i < dirs.length; ++i) {
+                if (dirs[i] == null || dirs[i].equals(current))
+                    continue;
+                if (lru == -1 || dirs[i].lastModified() < dirs[lru].lastModified())
+                    lru = i;
+            }
+            if (lru == -1)
+                break;
+            Log.d(TAG, "evict " + dirs[lru] + " (" + sizes[lru] + " bytes)");
+            delete(dirs[lru]);
+            total -= sizes[lru];
+            dirs[lru] = null;
+        }
+    }
+
+    /**
+     * Select (and create) the cache directory of musicDirectory, mark it as
+     * the most recently used one and evict old directories.
+     *
+     * @param lastMusicDirectory music directory used by the previous layout
+     * @param budget disk budget of the cache, in bytes
+     * @return the cache directory, where the database and the state are stored
+     */
+    public static File select(Context ctx, String musicDirectory, String lastMusicDirectory,
+            String dbFile, String stateFile, long budget) {
+        File root = getRoot(ctx);
+        File dir = getDirectory(ctx, musicDirectory);
+
+        if (lastMusicDirectory != null) {
+            File lastDir = getDirectory(ctx, lastMusicDirectory);
+            if (lastDir.mkdirs() || lastDir.isDirectory())
+                migrate(ctx, lastDir, dbFile, stateFile);
+        }
+
+        if (!dir.isDirectory()) {
+            if (!dir.mkdirs()) {
+                Log.e(TAG, "can't create " + dir);
+                return dir;
+            }
+            Log.d(TAG, "new cache for " + musicDirectory + ": " + dir);
+
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(new File(dir, PATH_FILE));
+                fos.write(musicDirectory.getBytes());
+            } catch (IOException e) {
+            }
+            try {
+                if (fos != null)
+                    fos.close();
+            } catch (IOException e) {
+            }
+        }
+        dir.setLastModified(System.currentTimeMillis());
+
+        evict(root, dir, budget);
+        return dir;
+    }
+
+    /**
+     * Return true if a database file is gzip compressed.
+     */
+    public static boolean isCompressed(File db) {
+        FileInputStream fis = null;
+        boolean compressed = false;
+        try {
+            fis = new FileInputStream(db);
+            compressed = ((fis.read() << 8) | fis.read()) == GZIP_MAGIC;
+        } catch (IOException e) {
+        }
+        try {
+            if (fis != null)
+                fis.close();
+        } catch (IOException e) {
+        }
+        return compressed;
+    }
+
+    /**
+     * Convert a database to the compressed or uncompressed format, if it
+     * isn't stored in it already. mpd only writes the database after an
+     * update, it is converted before mpd starts so that a format change is
+     * effective (and measurable) on the next start.
+     *
+     * @return false if the conversion failed, the database is then unchanged
+     */
+    public static boolean convert(File db, boolean compress) {
+        if (!db.exists() || isCompressed(db) == compress)
+            return true;
+
+        File tmp = new File(db.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            in = new BufferedInputStream(new FileInputStream(db));
+            if (!compress)
+                in = new GZIPInputStream(in);
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            if (compress)
+                out = new GZIPOutputStream(out);
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+            out.close();
+            out = null;
+            success = true;
+        } catch (IOException e) {
+            Log.e(TAG, "can't convert " + db + ": " + e);
+        }
+        try {
+            if (in != null)
+                in.close();
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+        }
+
+        if (success) {
+            /* mpd reports the database mtime as the last update time */
+            tmp.setLastModified(db.lastModified());
+            success = tmp.renameTo(db);
+        }
+        if (!success)
+            tmp.delete();
+        else
+            Log.d(TAG, db + " converted, compressed: " + compress + ", " + db.length() + " bytes");
+        return success;
+    }
+}
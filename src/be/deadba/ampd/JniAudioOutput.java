@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * AudioTrack writer of the "jni" audio output plugin of mpd.
+ *
+ * The mpd output thread writes 16 bit PCM into a single-producer,
+ * single-consumer ring allocated by mpd_jni. The ring data is shared as a
+ * direct ByteBuffer and the writer thread of this class drains it into an
+ * AudioTrack: nothing is copied across JNI, only the read and write positions
+ * go through the native methods (with the memory barriers that a ByteBuffer
+ * can't provide). The writer thread is named "output jni" so that
+ * ThreadScheduler tunes it like the native output threads.
+ *
+ * Instances are created and closed by mpd_jni from the mpd output thread.
+ */
+public class JniAudioOutput {
+    private static final String TAG = "JniAudioOutput";
+    private static final String THREAD_NAME = "output jni";
+
+    /* returned by nativePeek() when mpd canceled the ring content */
+    private static final int CANCELED = -1;
+
+    /* max size of an AudioTrack write */
+    private static final int CHUNK_SIZE = 8192;
+
+    /* the output that is open, only one at a time */
+    private static volatile JniAudioOutput sCurrent = null;
+
+    private final ByteBuffer mBuffer;
+    private final long mRing;
+    private final AudioTrack mTrack;
+    private final int mPollInterval; // in ms
+    private final byte[] mChunk;
+    private final Thread mThread;
+    private volatile boolean mStop = false;
+
+    /*
+     * Fill of the ring, in bytes, and its lowest value while playing: updated
+     * by the writer, the ring may be freed when the stats are read.
+     */
+    private volatile int mFill = 0;
+    private volatile int mMinFill;
+    private volatile long mEmptyCount = 0;
+
+    private JniAudioOutput(ByteBuffer buffer, long ring, AudioTrack track, int pollInterval) {
+        mBuffer = buffer;
+        mRing = ring;
+        mTrack = track;
+        mPollInterval = pollInterval;
+        mChunk = new byte[Math.min(CHUNK_SIZE, buffer.capacity())];
+        mMinFill = buffer.capacity();
+        mThread = new Thread(THREAD_NAME) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                writeLoop();
+            }
+        };
+    }
+
+    /**
+     * Called by mpd_jni when mpd opens the output.
+     *
+     * @param buffer the ring data, its capacity is a power of two
+     * @param ring the native ring, passed back to the native methods
+     * @param bits only 16 is supported
+     * @return null if the format isn't supported or if AudioTrack failed
+     */
+    static JniAudioOutput open(ByteBuffer buffer, long ring, int sampleRate, int channels,
+            int bits) {
+        if (bits != 16 || channels < 1 || channels > 2) {
+            Log.w(TAG, "unsupported format: " + bits + " bits, " + channels + " channels");
+            return null;
+        }
+        final int channelConfig = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO
+                : AudioFormat.CHANNEL_OUT_STEREO;
+        final int minSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            Log.w(TAG, "unsupported rate: " + sampleRate);
+            return null;
+        }
+
+        AudioTrack track = null;
+        try {
+            /*
+             * The ring holds most of the buffered audio, the track buffer
+             * only needs to cover the polling of the writer.
+             */
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, minSize * 2, AudioTrack.MODE_STREAM);
+            if (track.getState() != AudioTrack.STATE_INITIALIZED)
+                throw new IllegalStateException("not initialized");
+            track.play();
+        } catch (RuntimeException e) {
+            // IllegalArgumentException or IllegalStateException
+            Log.w(TAG, "can't create AudioTrack: " + e);
+            if (track != null)
+                track.release();
+            return null;
+        }
+
+        /* poll at a quarter of the track buffer */
+        final int bytesPerMs = sampleRate * channels * 2 / 1000;
+        final int pollInterval = Math.max(1, minSize / 2 / Math.max(1, bytesPerMs));
+
+        JniAudioOutput output = new JniAudioOutput(buffer, ring, track, pollInterval);
+        output.mThread.start();
+        sCurrent = output;
+        Log.d(TAG, "open: " + sampleRate + " Hz, " + channels + " channels, ring: "
+                + buffer.capacity() + " bytes, track: " + minSize * 2 + " bytes");
+        return output;
+    }
+
+    /**
+     * Called by mpd_jni when mpd closes the output: the ring is freed once
+     * this returns.
+     */
+    void close() {
+        mStop = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mTrack.stop();
+        mTrack.release();
+        if (sCurrent == this)
+            sCurrent = null;
+        Log.d(TAG, "close, ring emptied " + mEmptyCount + " times, min fill: " + mMinFill);
+    }
+
+    private void writeLoop() {
+        boolean wasFilled = false;
+
+        while (!mStop) {
+            final int available = nativePeek(mRing);
+            if (available == CANCELED) {
+                mTrack.pause();
+                mTrack.flush();
+                mTrack.play();
+                wasFilled = false;
+                continue;
+            }
+
+            final int fill = nativeGetFill(mRing);
+            mFill = fill;
+            if (wasFilled && fill < mMinFill)
+                mMinFill = fill;
+
+            if (available == 0) {
+                /* a drained or paused ring is empty too, not only an underrun */
+                if (wasFilled)
+                    mEmptyCount++;
+                wasFilled = false;
+                try {
+                    Thread.sleep(mPollInterval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            wasFilled = true;
+
+            final int size = Math.min(available, mChunk.length);
+            mBuffer.position(nativeGetReadOffset(mRing));
+            mBuffer.get(mChunk, 0, size);
+            final int written = mTrack.write(mChunk, 0, size);
+            if (written < 0) {
+                /* the next write or drain of mpd fails instead of blocking */
+                Log.e(TAG, "AudioTrack.write failed: " + written);
+                nativeFail(mRing);
+                break;
+            }
+            nativeConsume(mRing, written);
+        }
+    }
+
+    /**
+     * Fill the ring statistics of stats, -1 if no jni output is open.
+     */
+    public static void fillStats(MPDStats stats) {
+        final JniAudioOutput output = sCurrent;
+        if (output != null) {
+            stats.ringSize = output.mBuffer.capacity();
+            stats.ringFill = output.mFill;
+            stats.ringMinFill = output.mMinFill;
+            stats.ringEmptyCount = output.mEmptyCount;
+        } else {
+            stats.ringSize = stats.ringFill = stats.ringMinFill = -1;
+            stats.ringEmptyCount = -1;
+        }
+    }
+
+    /* contiguous bytes readable at the read offset, or CANCELED */
+    private static native int nativePeek(long ring);
+    private static native int nativeGetReadOffset(long ring);
+    private static native void nativeConsume(long ring, int size);
+    /* bytes in the ring */
+    private static native int nativeGetFill(long ring);
+    /* the writer stopped on an error, mpd then closes the output */
+    private static native void nativeFail(long ring);
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.util.Log;
+
+/**
+ * Extract native libraries from the apk (zip) into a directory.
+ *
+ * A manifest (name, crc, size and mtime of each extracted lib) is kept in the
+ * output directory. The crc and size of each lib are read from the zip
+ * central directory, so only the libs that changed since the last extraction
+ * are copied again. Each lib is written into a temporary file, checked
+ * against its crc and then renamed.
+ */
+public class LibExtractor {
+    private static final String TAG = "LibExtractor";
+    private static final String MANIFEST_FILE = ".manifest";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mApk;
+    private final String mZipDir;
+    private final File mOutDir;
+
+    public LibExtractor(File apk, String zipDir, File outDir) {
+        mApk = apk;
+        mZipDir = zipDir;
+        mOutDir = outDir;
+    }
+
+    public File getLibFile(String lib) {
+        return new File(mOutDir, "lib" + lib + ".so");
+    }
+
+    private static String manifestLine(String lib, ZipEntry ze, File file) {
+        return lib + " " + Long.toHexString(ze.getCrc()) + " " + ze.getSize() + " " + file.lastModified();
+    }
+
+    private Map<String, String> readManifest() {
+        Map<String, String> manifest = new HashMap<String, String>();
+        BufferedReader br = null;
+
+        try {
+            br = new BufferedReader(new FileReader(new File(mOutDir, MANIFEST_FILE)));
+            String line;
+            while ((line = br.readLine()) != null) {
+                int idx = line.indexOf(' ');
+                if (idx > 0)
+                    manifest.put(line.substring(0, idx), line);
+            }
+        } catch (IOException e) {
+            // no manifest: extract everything
+        }
+        try {
+            if (br != null)
+                br.close();
+        } catch (IOException e) {
+        }
+        return manifest;
+    }
+
+    private boolean writeManifest(List<String> lines) {
+        File tmp = new File(mOutDir, MANIFEST_FILE + TMP_SUFFIX);
+        FileOutputStream fos = null;
+        boolean success = false;
+
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines)
+                sb.append(line).append('\n');
+            fos = new FileOutputStream(tmp);
+            fos.write(sb.toString().getBytes());
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            success = tmp.renameTo(new File(mOutDir, MANIFEST_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "can't write manifest: " + e);
+        }
+        try {
+            if (fos != null)
+                fos.close();
+        } catch (IOException e) {
+        }
+        if (!success)
+            tmp.delete();
+        return success;
+    }
+
+    private static boolean extractEntry(ZipFile zf, ZipEntry ze, File outFile) {
+        File tmp = new File(outFile.getPath() + TMP_SUFFIX);
+        FileOutputStream fos = null;
+        InputStream is = null;
+        boolean success = false;
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            CRC32 crc = new CRC32();
+            long size = 0;
+
+            fos = new FileOutputStream(tmp);
+            is = zf.getInputStream(ze);
+
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                fos.write(buffer, 0, read);
+                size += read;
+            }
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (crc.getValue() != ze.getCrc() || size != ze.getSize())
+                Log.e(TAG, ze.getName() + ": crc/size mismatch");
+            else
+                success = tmp.renameTo(outFile);
+        } catch (IOException e) {
+            Log.e(TAG, ze.getName() + ": can't extract: " + e);
+        }
+        try {
+            if (fos != null)
+                fos.close();
+            if (is != null)
+                is.close();
+        } catch (IOException e) {
+        }
+        if (!success)
+            tmp.delete();
+        return success;
+    }
+
+    /**
+     * Extract the libs that are missing or outdated.
+     *
+     * @return true if all libs are up to date in the output directory.
+     */
+    public boolean extract(String[] libs) {
+        if (!mOutDir.isDirectory() && !mOutDir.mkdirs()) {
+            Log.e(TAG, "can't create " + mOutDir);
+            return false;
+        }
+
+        ZipFile zf = null;
+        ExecutorService executor = null;
+        boolean success = true;
+
+        try {
+            zf = new ZipFile(mApk);
+
+            final Map<String, String> manifest = readManifest();
+            final List<String> lines = new ArrayList<String>();
+            final List<String> pendingLibs = new ArrayList<String>();
+            final List<Future<Boolean>> pendingResults = new ArrayList<Future<Boolean>>();
+
+            for (String lib : libs) {
+                final ZipEntry ze = zf.getEntry(mZipDir + "/lib" + lib + ".so");
+                if (ze == null) {
+                    Log.e(TAG, mZipDir + "/lib" + lib + ".so not found");
+                    success = false;
+                    continue;
+                }
+                final File file = getLibFile(lib);
+                if (file.length() == ze.getSize() && manifestLine(lib, ze, file).equals(manifest.get(lib))) {
+                    lines.add(manifest.get(lib));
+                    continue;
+                }
+
+                if (executor == null) {
+                    int threads = Math.min(libs.length, Runtime.getRuntime().availableProcessors());
+                    executor = Executors.newFixedThreadPool(threads);
+                }
+                final ZipFile fzf = zf;
+                pendingLibs.add(lib);
+                pendingResults.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return extractEntry(fzf, ze, file);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < pendingLibs.size(); ++i) {
+                String lib = pendingLibs.get(i);
+                boolean extracted = false;
+                try {
+                    extracted = pendingResults.get(i).get();
+                } catch (InterruptedException e) {
+                } catch (ExecutionException e) {
+                    Log.e(TAG, lib + ": " + e.getCause());
+                }
+                if (extracted) {
+                    Log.d(TAG, "lib" + lib + ".so extracted");
+                    lines.add(manifestLine(lib, zf.getEntry(mZipDir + "/lib" + lib + ".so"), getLibFile(lib)));
+                } else {
+                    success = false;
+                }
+            }
+
+            if (!pendingLibs.isEmpty() && !writeManifest(lines))
+                success = false;
+        } catch (IOException e) {
+            Log.e(TAG, "can't open " + mApk + ": " + e);
+            success = false;
+        }
+        if (executor != null)
+            executor.shutdown();
+        try {
+            if (zf != null)
+                zf.close();
+        } catch (IOException e) {
+        }
+        return success;
+    }
+}
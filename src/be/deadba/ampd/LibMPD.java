@@ -19,29 +19,106 @@
 
 package be.deadba.ampd;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class LibMPD {
     private static final String TAG = "LibMPD";
 
-    public interface OnErrorListener {
+    /*
+     * Lifecycle phases of a mpd run, PHASE_CONFIG_PARSED to
+     * PHASE_STATE_RESTORED must match LIBMPD_PHASE_* from mpd_jni.
+     */
+    public static final int PHASE_STARTED = 0;
+    public static final int PHASE_CONFIG_PARSED = 1;
+    public static final int PHASE_LISTENING = 2;
+    public static final int PHASE_DB_LOADED = 3;
+    public static final int PHASE_STATE_RESTORED = 4;
+    public static final int PHASE_READY = 5;
+
+    /*
+     * Native statistics, must match LIBMPD_STAT_* from mpd_jni
+     */
+    public static final int STAT_UNDERRUNS = 0;
+    public static final int STAT_SONGS = 1;
+    public static final int STAT_CLIENTS = 2;
+    public static final int STAT_COUNT = 3;
+
+    /*
+     * Optional features of libmpd, must match LIBMPD_CAP_* from mpd_jni
+     */
+    public static final int CAP_STATS = 0x1; // STAT_UNDERRUNS is counted
+    public static final int CAP_SAMPLERATE = 0x2; // sinc resamplers
+    public static final int CAP_JNI_OUTPUT = 0x4; // "jni" audio output
+    public static final int CAP_VORBIS_ENCODER = 0x8;
+    public static final int CAP_LAME_ENCODER = 0x10;
+    public static final int CAP_COMPRESSED_DB = 0x20; // compress option of the simple database
+    public static final int CAP_MEDIACODEC = 0x40; // "mediacodec" decoder
+
+    /*
+     * Log levels, must match LIBMPD_LOG_* from mpd_log.h
+     */
+    public static final int LOG_DEBUG = 0;
+    public static final int LOG_INFO = 1;
+    public static final int LOG_DEFAULT = 2;
+    public static final int LOG_WARNING = 3;
+    public static final int LOG_ERROR = 4;
+
+    /*
+     * Sticker database flags, must match STICKER_* from mpd_sticker.c
+     */
+    public static final int STICKER_WAL = 1;
+    public static final int STICKER_SYNC_NORMAL = 2;
+
+    /*
+     * Log domains that are only logged from LOG_WARNING, unless the level is
+     * LOG_DEBUG: a database update logs a line per file.
+     */
+    private static final String sQuietLogDomains[] = new String[] {
+        "update",
+        "inotify",
+    };
+
+    private static final String sPhaseNames[] = new String[] {
+        "started",
+        "config_parsed",
+        "listening",
+        "db_loaded",
+        "state_restored",
+        "ready"
+    };
+
+    public interface Listener {
+        /*
+         * Called from a mpd thread, PHASE_READY is sent once mpd serves
+         * clients.
+         */
+        public void onPhase(int phase);
         public void onError(int ret);
+        /*
+         * Called when mpd exits without error but without being stopped
+         * (killed by a client).
+         */
+        public void onExit();
     }
 
-    private static LibMPD sLibMPD = null;
+    private static volatile LibMPD sLibMPD = null;
+    private static volatile MPDThread sPhaseThread = null;
 
     private MPDThread mMPDThread;
     private final Context mContext;
-    private final OnErrorListener mOnErrorListener;
     private boolean mInit = false;
 
     private static final String sLibList[] = new String[] {
@@ -57,99 +134,167 @@ public class LibMPD {
         "mpd_jni"
     };
 
+    /*
+     * Native lib sets, see jni/Application.mk: the default set is installed
+     * by the package manager, the others are extracted from the apk.
+     */
+    private static final String VARIANT_DEFAULT = "default";
+    private static final String VARIANT_ARMEABI = "armeabi"; // lib/armeabi
+    private static final String VARIANT_X86_SSSE3 = "x86-ssse3"; // assets/lib/
+
+    private static volatile String sVariant = null;
+    private static volatile int sCapabilities = -1; // unknown until the libs are loaded
+
+    private static final int PROBE_INTERVAL = 20; // in ms
+    private static final int PROBE_TIMEOUT = 500; // in ms
+
+    private static void loadLib(String lib, String libPath) {
+        int token = StartupTrace.begin("load " + lib);
+        try {
+            if (libPath == null)
+                System.loadLibrary(lib);
+            else
+                System.load(libPath + "/lib"  + lib + ".so");
+        } finally {
+            StartupTrace.end(token);
+        }
+    }
+
+    /*
+     * Copy the libs of a variant from the apk (zip) into the files folder,
+     * only the libs that changed since the last copy are extracted again.
+     * Return the folder, or null if the apk doesn't contain all the libs.
+     */
+    private String extractVariant(String zipDir, String variant) {
+        String libPath = mContext.getFilesDir() + "/" + variant;
+        LibExtractor extractor = new LibExtractor(new File(mContext.getPackageCodePath()),
+                zipDir, new File(libPath));
+        return extractor.extract(sLibList) ? libPath : null;
+    }
+
     private void initLib() {
         String libPath = null;
+        String variant = VARIANT_DEFAULT;
+        int token = StartupTrace.begin("LibMPD.initLib");
+
+        Log.d(TAG, "cpu: " + CpuFeatures.describe());
 
         if (CpuFeatures.isArm() && CpuFeatures.isArmv7a() && !CpuFeatures.hasNeon()) {
             /*
              * Rase case: cpu is armeabi-v7a but without Neon (like tegra 2).
              * Don't try to link with armeabi-v7a libs that are built with NEON.
-             * Instead, copy armeabi libs from apk (zip) into files folder and link with them.
+             * Instead, link with the armeabi libs. There is no armeabi-v7a
+             * variant without NEON as long as the libav and mpd makefiles
+             * don't honor AMPD_ARM_NEON.
              */
-            libPath = mContext.getFilesDir() + "/armeabi";
-
-            File apk = new File(mContext.getPackageCodePath());
-            File outDir = new File(libPath);
-
-            if (!outDir.exists() || apk.lastModified() > outDir.lastModified()) {
-                Log.d(TAG, "Armv7a without neon: copying armeabi libs from apk");
-
-                ZipFile zf = null;
-                FileOutputStream fos = null;
-                InputStream is = null;
-
-                try {
-                    zf = new ZipFile(apk);
-                    byte[] buffer = new byte[16*1024];
-
-                    if (!outDir.exists())
-                        outDir.mkdir();
-                    else
-                        outDir.setLastModified(System.currentTimeMillis());
-
-                    for (String lib : sLibList) {
-                        ZipEntry ze = zf.getEntry("lib/armeabi/lib"+lib+".so");
-                        fos = new FileOutputStream(outDir.getPath() +"/lib"+lib+".so");
-                        is = zf.getInputStream(ze);
-
-                        int read;
-                        while ((read = is.read(buffer)) != -1)
-                            fos.write(buffer, 0, read);
-                        fos.close();
-                        fos = null;
-                        is.close();
-                        is = null;
-                    }
-                    zf.close();
-                    zf = null;
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                try {
-                    if (fos != null)
-                        fos.close();
-                    if (is != null)
-                        is.close();
-                    if (zf != null)
-                        zf.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            libPath = extractVariant("lib/armeabi", VARIANT_ARMEABI);
+            if (libPath == null) {
+                Log.e(TAG, "Armv7a without neon: can't extract armeabi libs from apk");
+                libPath = mContext.getFilesDir() + "/" + VARIANT_ARMEABI;
             }
+            variant = VARIANT_ARMEABI;
+        } else if (CpuFeatures.hasX86Ssse3()) {
+            libPath = extractVariant("assets/lib/" + VARIANT_X86_SSSE3, VARIANT_X86_SSSE3);
+            if (libPath != null)
+                variant = VARIANT_X86_SSSE3;
         }
+        Log.i(TAG, "native libs: " + variant);
 
         try {
-            if (libPath == null) {
-                // links with libs from lib/
-                for (String lib : sLibList)
-                    System.loadLibrary(lib);
-            } else {
-                // links with libs from files/armebi/
-                for (String lib : sLibList)
-                    System.load(libPath + "/lib"  + lib + ".so");
-            }
-            init();
+            // links with libs from lib/ or from a variant in files/
+            for (String lib : sLibList)
+                loadLib(lib, libPath);
+            sVariant = variant;
+            sCapabilities = nativeGetCapabilities();
             mInit = true;
         } catch (UnsatisfiedLinkError ule) {
             Log.e(TAG, "Can't load library: " + ule);
         } catch (SecurityException se) {
             Log.e(TAG, "Encountered a security issue when loading library: " + se);
         }
+        StartupTrace.end(token);
+    }
+
+    public static String getPhaseName(int phase) {
+        return phase >= 0 && phase < sPhaseNames.length ? sPhaseNames[phase] : String.valueOf(phase);
+    }
+
+    /*
+     * Called from mpd_jni, from a mpd thread
+     */
+    private static void onNativePhase(int phase) {
+        final MPDThread thread = sPhaseThread;
+        if (thread != null) {
+            thread.onPhase(phase);
+            if (phase == PHASE_STATE_RESTORED)
+                thread.onPhase(PHASE_READY);
+        }
     }
 
     final private class MPDThread extends Thread {
+        private final Listener mListener;
+        private volatile boolean mQuit = false;
+        private int mLastPhase = -1;
+        private volatile long mStartTime = 0;
+
+        public MPDThread(Listener listener) {
+            super("MPDThread");
+            mListener = listener;
+        }
+
+        public synchronized void onPhase(int phase) {
+            if (phase <= mLastPhase)
+                return;
+            mLastPhase = phase;
+            Log.d(TAG, "phase: " + getPhaseName(phase));
+            if (phase == PHASE_READY)
+                StartupTrace.finish(mContext, getPhaseName(phase));
+            else
+                StartupTrace.mark(getPhaseName(phase));
+            if (mListener != null)
+                mListener.onPhase(phase);
+        }
+
         @Override
         public void run() {
-            int ret = LibMPD.run(MPDConf.getPath(mContext));
+            /*
+             * init, run and deinit are done from the same thread for each
+             * run, so that mpd can be turned off and on again in the same
+             * process.
+             */
+            mStartTime = SystemClock.elapsedRealtime();
+            onPhase(PHASE_STARTED);
+            sPhaseThread = this;
+            LibMPD.init();
+            /*
+             * init clears the quit requests of the previous runs: a finish()
+             * that came before it is seen by mQuit, one that comes after it
+             * by libmpd.
+             */
+            int ret = mQuit ? 0 : LibMPD.run(MPDConf.getPath(mContext));
+            LibMPD.deinit();
+            sPhaseThread = null;
             Log.d(TAG, "mpd terminated: " + ret);
-            if (ret != 0 && mOnErrorListener != null)
-                mOnErrorListener.onError(ret);
+            if (!mQuit && mListener != null) {
+                if (ret != 0)
+                    mListener.onError(ret);
+                else
+                    mListener.onExit();
+            }
+        }
+
+        public long getUptime() {
+            return isAlive() ? SystemClock.elapsedRealtime() - mStartTime : 0;
+        }
+
+        public boolean isQuitting() {
+            return mQuit;
         }
 
         public void finish() {
-            LibMPD.quit();
+            mQuit = true;
+            if (isAlive())
+                LibMPD.quit();
             try {
                 join();
             } catch (InterruptedException e) {
@@ -157,22 +302,87 @@ public class LibMPD {
         }
     }
 
-    private LibMPD(Context ctx, OnErrorListener listener) {
-        mContext = ctx;
-        mOnErrorListener = listener;
-        initLib();
+    /*
+     * Used when libmpd doesn't send its lifecycle phases: poll the mpd port
+     * until it accepts connections and mpd sends its greeting.
+     */
+    final private class ListenProbe extends Thread {
+        private final MPDThread mThread;
+        private final int mPort;
+
+        public ListenProbe(MPDThread thread, int port) {
+            super("ListenProbe");
+            mThread = thread;
+            mPort = port;
+        }
+
+        private boolean isThreadRunning() {
+            return mThread.isAlive() && !mThread.isQuitting();
+        }
+
+        private boolean probe() {
+            Socket socket = new Socket();
+            boolean ready = false;
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", mPort), PROBE_TIMEOUT);
+                mThread.onPhase(PHASE_LISTENING);
+
+                /*
+                 * The socket is bound before the database is loaded, mpd
+                 * serves clients once it sent its greeting.
+                 */
+                socket.setSoTimeout(PROBE_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                while (!ready && isThreadRunning()) {
+                    try {
+                        String line = in.readLine();
+                        if (line == null)
+                            break;
+                        ready = line.startsWith("OK MPD");
+                    } catch (SocketTimeoutException e) {
+                    }
+                }
+            } catch (IOException e) {
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            return ready;
+        }
+
+        @Override
+        public void run() {
+            while (isThreadRunning()) {
+                if (probe()) {
+                    Log.d(TAG, "mpd is ready on port " + mPort);
+                    mThread.onPhase(PHASE_READY);
+                    return;
+                }
+                try {
+                    Thread.sleep(PROBE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        deinit();
+    private LibMPD(Context ctx) {
+        mContext = ctx.getApplicationContext();
+        initLib();
     }
 
-    private boolean start() {
+    private boolean start(Listener listener) {
         if (mInit && mMPDThread == null) {
-            mMPDThread = new MPDThread();
+            if (hasLogHandler())
+                configureLog(MPDConf.getLogFile(mContext), MPDConf.getLogLevel(mContext));
+            nativeConfigureSticker(MPDConf.getStickerFile(mContext).getAbsolutePath(),
+                    MPDConf.getStickerFlags(mContext), MPDConf.getStickerCacheSize(mContext));
+            mMPDThread = new MPDThread(listener);
             mMPDThread.start();
+            if (!hasPhaseCallback())
+                new ListenProbe(mMPDThread, MPDConf.getPort(mContext)).start();
             return true;
         } else {
             return false;
@@ -190,15 +400,22 @@ public class LibMPD {
         return mMPDThread != null && mMPDThread.isAlive();
     }
 
-    public static synchronized boolean start(Context ctx, OnErrorListener listener) {
-        if (sLibMPD != null) {
-            /*
-             * mpd can be run only one time
-             */
-            return false;
-        }
-        sLibMPD = new LibMPD(ctx, listener);
-        return sLibMPD.start();
+    /**
+     * Load the libs if they aren't loaded yet, return false if they can't be.
+     */
+    public static synchronized boolean load(Context ctx) {
+        /*
+         * libs are loaded only one time per process, mpd can then be started
+         * and stopped again.
+         */
+        if (sLibMPD == null)
+            sLibMPD = new LibMPD(ctx);
+        return sLibMPD.mInit;
+    }
+
+    public static synchronized boolean start(Context ctx, Listener listener) {
+        load(ctx);
+        return sLibMPD.start(listener);
     }
 
     public static synchronized boolean stop() {
@@ -212,6 +429,112 @@ public class LibMPD {
         return sLibMPD != null && sLibMPD.isThreadRunning();
     }
 
+    /**
+     * Return the name of the native lib set that is loaded, null if none.
+     */
+    public static String getVariant() {
+        return sVariant;
+    }
+
+    /**
+     * Return the time since mpd was started, in ms.
+     */
+    public static long getUptime() {
+        final MPDThread thread = sPhaseThread;
+        return thread != null ? thread.getUptime() : 0;
+    }
+
+    /**
+     * Return the CAP_* flags of libmpd, -1 if the libs aren't loaded (see
+     * load()). Never blocks.
+     */
+    public static int getCapabilities() {
+        return sCapabilities;
+    }
+
+    public static boolean hasCapability(int capability) {
+        final int capabilities = sCapabilities;
+        return capabilities >= 0 && (capabilities & capability) != 0;
+    }
+
+    /**
+     * Fill stats (of STAT_COUNT size) with the native statistics, -1 if not
+     * available.
+     */
+    public static void getStats(long[] stats) {
+        final LibMPD libMPD = sLibMPD;
+        if (libMPD != null && libMPD.mInit && sPhaseThread != null) {
+            nativeGetStats(stats);
+        } else {
+            for (int i = 0; i < stats.length; ++i)
+                stats[i] = -1;
+        }
+    }
+
+    private static boolean isLoaded() {
+        final LibMPD libMPD = sLibMPD;
+        return libMPD != null && libMPD.mInit;
+    }
+
+    /**
+     * Set the nice value of a thread of the process.
+     *
+     * @return 0, an errno, or -1 if mpd_jni is not loaded
+     */
+    public static int setThreadPriority(int tid, int nice) {
+        return isLoaded() ? nativeSetThreadPriority(tid, nice) : -1;
+    }
+
+    /**
+     * Restrict a thread of the process to the cpus of a mask (bit n for cpu
+     * n).
+     *
+     * @return 0, an errno, or -1 if mpd_jni is not loaded
+     */
+    public static int setThreadAffinity(int tid, long mask) {
+        return isLoaded() ? nativeSetThreadAffinity(tid, mask) : -1;
+    }
+
+    /*
+     * Configure the log sink of mpd_jni, the levels of the domains are reset.
+     */
+    private static void configureLog(File file, int level) {
+        nativeConfigureLog(file.getAbsolutePath(), MPDConf.LOG_FILE_MAX_SIZE, level);
+        if (level > LOG_DEBUG) {
+            for (String domain : sQuietLogDomains)
+                nativeSetLogLevel(domain, Math.max(level, LOG_WARNING));
+        }
+    }
+
+    /**
+     * Return the last maxLines lines logged by mpd, oldest first. Empty if
+     * mpd_jni is not loaded or libmpd doesn't log through it.
+     */
+    public static List<String> getLog(int maxLines) {
+        String[] lines = isLoaded() && hasLogHandler() ? nativeGetLog(maxLines) : null;
+        return lines != null ? Arrays.asList(lines) : new ArrayList<String>();
+    }
+
+    /**
+     * Write the lines logged since the last flush to the log file, see
+     * MPDConf.getLogFile(). mpd_jni flushes by itself on errors.
+     */
+    public static void flushLog() {
+        if (isLoaded() && hasLogHandler())
+            nativeFlushLog();
+    }
+
+    private native static boolean hasPhaseCallback();
+    private native static int nativeGetCapabilities();
+    private native static boolean hasLogHandler();
+    private native static void nativeConfigureLog(String path, long maxSize, int level);
+    private native static void nativeSetLogLevel(String domain, int level);
+    private native static String[] nativeGetLog(int maxLines);
+    private native static void nativeFlushLog();
+    private native static void nativeConfigureSticker(String path, int flags, int cacheSize);
+    private native static void nativeGetStats(long[] stats);
+    private native static int nativeSetThreadPriority(int tid, int nice);
+    private native static int nativeSetThreadAffinity(int tid, long mask);
     private native static void init();
     private native static void deinit();
     private native static int run(String mpdConf);
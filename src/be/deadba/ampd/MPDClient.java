@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal blocking client of the mpd protocol, used by the service to talk
+ * to its local mpd.
+ */
+public class MPDClient {
+    private static final String CHARSET = "UTF-8";
+    private static final int CONNECT_TIMEOUT = 2000; // in ms
+    private static final int READ_TIMEOUT = 10000; // in ms
+
+    /**
+     * Error returned by mpd (ACK).
+     */
+    public static class MPDException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public MPDException(String ack) {
+            super(ack);
+        }
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private Socket mSocket = null;
+    private BufferedReader mReader = null;
+    private Writer mWriter = null;
+    private String mVersion = null;
+
+    public MPDClient(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public MPDClient(int port) {
+        this("127.0.0.1", port);
+    }
+
+    /**
+     * Quote a command argument.
+     */
+    public static String quote(String arg) {
+        StringBuilder sb = new StringBuilder(arg.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < arg.length(); ++i) {
+            final char c = arg.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\');
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    public synchronized void connect() throws IOException {
+        if (mSocket != null)
+            return;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            // commands are small writes waiting for a response
+            socket.setTcpNoDelay(true);
+            mReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+            mWriter = new OutputStreamWriter(socket.getOutputStream(), CHARSET);
+
+            String greeting = mReader.readLine();
+            if (greeting == null || !greeting.startsWith("OK MPD "))
+                throw new IOException("invalid greeting: " + greeting);
+            mVersion = greeting.substring(7);
+            mSocket = socket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e2) {
+            }
+            mReader = null;
+            mWriter = null;
+            throw e;
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return mSocket != null;
+    }
+
+    public synchronized String getVersion() {
+        return mVersion;
+    }
+
+    public synchronized void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+            mSocket = null;
+            mReader = null;
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Set the read timeout in ms, 0 to block (used by idle).
+     */
+    public synchronized void setTimeout(int timeout) throws IOException {
+        if (mSocket == null)
+            throw new IOException("not connected");
+        mSocket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Send a command without waiting for its response.
+     */
+    public void send(String command) throws IOException {
+        final Writer writer;
+        synchronized (this) {
+            writer = mWriter;
+        }
+        if (writer == null)
+            throw new IOException("not connected");
+        synchronized (writer) {
+            writer.write(command);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * Read the response of a command sent by {@link #send(String)}.
+     *
+     * @return the lines of the response (without the final OK)
+     */
+    public List<String> receive() throws IOException {
+        final BufferedReader reader;
+        synchronized (this) {
+            reader = mReader;
+        }
+        if (reader == null)
+            throw new IOException("not connected");
+
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.equals("OK"))
+                return lines;
+            if (line.startsWith("ACK "))
+                throw new MPDException(line);
+            lines.add(line);
+        }
+        close();
+        throw new IOException("connection closed");
+    }
+
+    /**
+     * Send a command and wait for its response. The connection is closed on
+     * I/O errors (but not on mpd errors).
+     */
+    public List<String> command(String command) throws IOException {
+        try {
+            send(command);
+            return receive();
+        } catch (MPDException e) {
+            throw e;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+}
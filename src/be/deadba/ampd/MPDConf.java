@@ -20,11 +20,17 @@
 package be.deadba.ampd;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -41,15 +47,46 @@ public class MPDConf {
     private final static String PLAYLISTS_FILE = "playlists";
     private final static String LOG_FILE_DEFAULT = "androidlog";
     private final static String LOG_LEVEL_DEFAULT = "default";
+    private final static String DB_FORMAT_COMPRESSED = "compressed";
+    private final static String DB_FORMAT_DEFAULT = "uncompressed";
+    private final static String STICKER_SYNC_NORMAL = "normal";
+    private final static String STICKER_CACHE_SIZE_DEFAULT = "1024"; // in KB
+    private final static String LOG_LEVEL_VERBOSE = "verbose";
+    private final static String LOG_LEVEL_WARNING = "warning";
+    private final static String LOG_RING_FILE = "mpd.log";
+    /* the log file is rotated to LOG_RING_FILE.1 above it */
+    public final static long LOG_FILE_MAX_SIZE = 256 * 1024;
     private final static String RESTORE_PAUSED_DEFAULT = "yes";
     private final static String PORT_DEFAULT = "6600";
     private final static String AUTO_UPDATE_DEFAULT = "no";
+    private final static String DB_CACHE_SIZE_DEFAULT = "64"; // in MB
+    private final static String BUFFER_AUTO = "auto";
+    private final static String OUTPUT_JNI = "jni";
+    private final static String OUTPUT_AUDIOTRACK = "audiotrack";
+    private final static String RESAMPLER_AUTO = "auto";
+    private final static String HW_DECODER_DEFAULT = "off";
+    private final static String HTTPD_PORT_DEFAULT = "8000";
+    private final static String HTTPD_ENCODER_DEFAULT = "wave";
+    private final static String HTTPD_BITRATE_DEFAULT = "128"; // in kbit/s
+    private final static String HTTPD_MAX_CLIENTS_DEFAULT = "16";
+    /*
+     * The stream is encoded in a fixed format: the encoder isn't reopened when
+     * the format of the songs changes.
+     */
+    private final static String HTTPD_FORMAT = "44100:16:2";
+    private final static String WAKELOCK_GRACE_PERIOD_DEFAULT = "60"; // in s
+    private final static String LOCALHOST = "127.0.0.1";
+
+    /* values of the mpd_bind preference */
+    public final static String BIND_ANY = "any"; // all interfaces
+    public final static String BIND_NETWORK = "network"; // see NetworkAddresses.getLocal()
+    public final static String BIND_LOCALHOST = "localhost";
 
 
     public final static String DEFAULT_MUSIC_DIRECTORY = Environment.
             getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath();
 
-    private static abstract class Entry {
+    static abstract class Entry {
         private final String key;
 
         public Entry(String key) {
@@ -78,6 +115,32 @@ public class MPDConf {
         }
     }
 
+    /*
+     * Entry that mpd can change while running with a protocol command: a
+     * change of its value doesn't need a restart.
+     */
+    private static class LiveEntry extends SimpleEntry {
+        private final String command;
+        public LiveEntry(String key, String entry, String command) {
+            super(key, entry);
+            this.command = command;
+        }
+        public String getCommand() {
+            return command + " " + MPDClient.quote(getString());
+        }
+    }
+
+    /*
+     * Entry that mpd only reads at startup and whose value may differ from
+     * the running one: a change doesn't restart mpd, it is used at the next
+     * start.
+     */
+    private static class StartupEntry extends SimpleEntry {
+        public StartupEntry(String key, String entry) {
+            super(key, entry);
+        }
+    }
+
     private static class BlockEntry extends Entry {
         private final Entries entries;
         public BlockEntry(String key, Entries entries) {
@@ -94,46 +157,146 @@ public class MPDConf {
         }
     }
 
-    private static class Entries extends ArrayList<Entry> {
+    static class Entries extends ArrayList<Entry> {
         private static final long serialVersionUID = 1L;
         public void put(String key, String entry) {
             add(new MPDConf.SimpleEntry(key, entry));
         }
+        public void put(String key, String entry, String command) {
+            add(new MPDConf.LiveEntry(key, entry, command));
+        }
+        public void putStartup(String key, String entry) {
+            add(new MPDConf.StartupEntry(key, entry));
+        }
         public void put(String key, Entries entries) {
             add(new MPDConf.BlockEntry(key, entries));
         }
     }
 
-    private static boolean write(Context ctx, Entries entries) {
-        boolean success = false;
+    /* result of reload() */
+    public final static int RELOAD_NONE = 0;
+    public final static int RELOAD_LIVE = 1;
+    public final static int RELOAD_RESTART = 2;
+
+    /* flattened entries of the last reload */
+    private static Map<String, Entry> sLastEntries = null;
+
+    /* LibMPD.CAP_* of the libmpd the config is generated for */
+    private static volatile int sCapabilities = 0;
+
+    /*
+     * Flatten entries into a map of "key" and "block[index].key" paths. Keys
+     * that are repeated get an index too.
+     */
+    private static void flatten(Entries entries, String prefix, Map<String, Entry> out) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (MPDConf.Entry entry : entries) {
+            Integer count = counts.get(entry.getKey());
+            counts.put(entry.getKey(), count == null ? 1 : count + 1);
+            String path = prefix + entry.getKey();
+            if (count != null || entry.getBlock() != null)
+                path += "[" + (count == null ? 0 : count) + "]";
+
+            if (entry.getBlock() != null)
+                flatten(entry.getBlock(), path + ".", out);
+            else
+                out.put(path, entry);
+        }
+    }
+
+    /*
+     * Compare the running entries with the new ones, fill liveCommands with
+     * the commands that apply the changed live entries.
+     */
+    private static int diff(Map<String, Entry> running, Map<String, Entry> entries,
+            List<String> liveCommands) {
+        Set<String> paths = new HashSet<String>(running.keySet());
+        paths.addAll(entries.keySet());
+
+        int result = RELOAD_NONE;
+        for (String path : paths) {
+            MPDConf.Entry oldEntry = running.get(path);
+            MPDConf.Entry newEntry = entries.get(path);
+            if (oldEntry != null && newEntry != null
+                    && oldEntry.getString().equals(newEntry.getString()))
+                continue;
+            if (oldEntry instanceof StartupEntry && newEntry instanceof StartupEntry) {
+                Log.d(TAG, "startup change: " + path);
+                continue;
+            }
+            if (oldEntry instanceof LiveEntry && newEntry instanceof LiveEntry) {
+                Log.d(TAG, "live change: " + path);
+                liveCommands.add(((LiveEntry) newEntry).getCommand());
+                result = RELOAD_LIVE;
+            } else {
+                Log.d(TAG, "structural change: " + path);
+                liveCommands.clear();
+                return RELOAD_RESTART;
+            }
+        }
+        return result;
+    }
+
+    static String toString(Entries entries) {
         StringBuilder conf = new StringBuilder();
 
-        Iterator<MPDConf.Entry> it = entries.iterator();
-        while (it.hasNext()) {
-            MPDConf.Entry entry = it.next();
+        for (MPDConf.Entry entry : entries) {
             conf.append(entry.getKey());
             if (entry.getString() != null) {
                 conf.append(" \"").append(entry.getString()).append("\"\n");
             } else {
                 conf.append(" {\n");
-                Entries blockEntries = entry.getBlock();
-                Iterator<MPDConf.Entry> blockIt = blockEntries.iterator();
-                while (blockIt.hasNext()) {
-                    MPDConf.Entry blockEntry = blockIt.next();
-                    if (blockEntry.getString() == null) {
-                        return false;
-                    }
+                for (MPDConf.Entry blockEntry : entry.getBlock()) {
+                    if (blockEntry.getString() == null)
+                        return null;
                     conf.append(" ").append(blockEntry.getKey())
                         .append(" \"").append(blockEntry.getString()).append("\"\n");
-                    blockIt.remove();
                 }
                 conf.append("}\n");
             }
-            it.remove();
+        }
+        return conf.toString();
+    }
+
+    private static boolean isUnchanged(Context ctx, byte[] conf) {
+        File file = ctx.getFileStreamPath(CONF_FILE);
+        if (file.length() != conf.length)
+            return false;
+
+        byte[] buffer = new byte[conf.length];
+        FileInputStream fis = null;
+        boolean unchanged = false;
+        try {
+            fis = new FileInputStream(file);
+            int len = 0, read;
+            while (len < buffer.length && (read = fis.read(buffer, len, buffer.length - len)) > 0)
+                len += read;
+            unchanged = len == conf.length && Arrays.equals(buffer, conf);
+        } catch (IOException e) {
+        }
+        try {
+            if (fis != null)
+                fis.close();
+        } catch (IOException e) {
+        }
+        return unchanged;
+    }
+
+    private static boolean write(Context ctx, Entries entries) {
+        boolean success = false;
+        String text = toString(entries);
+        if (text == null)
+            return false;
+        byte[] conf = text.getBytes();
+
+        if (isUnchanged(ctx, conf)) {
+            Log.d(TAG, "config unchanged");
+            return true;
         }
         try {
             FileOutputStream fos = ctx.openFileOutput(CONF_FILE, 0);
-            fos.write(conf.toString().getBytes());
+            fos.write(conf);
             fos.close();
             success = true;
         } catch (FileNotFoundException e) {
@@ -145,54 +308,179 @@ public class MPDConf {
         return success;
     }
 
-    public static synchronized void reload(Context ctx) {
-        Entries entries = new Entries();
+    public static void reload(Context ctx) {
+        reload(ctx, new ArrayList<String>());
+    }
+
+    /**
+     * Regenerate the mpd config from the preferences.
+     *
+     * The file is only written if it changed. The new entries are compared
+     * with the ones of the previous reload: if only live entries changed,
+     * liveCommands is filled with the protocol commands that apply them.
+     *
+     * @return RELOAD_NONE, RELOAD_LIVE or RELOAD_RESTART
+     */
+    public static synchronized int reload(Context ctx, List<String> liveCommands) {
+        Entries entries = generate(ctx, selectDatabaseDirectory(ctx));
+
+        Map<String, Entry> flatEntries = new HashMap<String, Entry>();
+        flatten(entries, "", flatEntries);
+        int result = sLastEntries != null ? diff(sLastEntries, flatEntries, liveCommands) : RELOAD_RESTART;
+        sLastEntries = flatEntries;
 
+        if (!write(ctx, entries))
+            Log.e(TAG, "can't write " + CONF_FILE);
+        return result;
+    }
+
+    /*
+     * Select the database cache directory of the music directory.
+     *
+     * Each music directory has its own database and state, so that
+     * switching back to a previous directory doesn't need a new scan.
+     * last_music_directory is only used to migrate the previous layout.
+     */
+    static File selectDatabaseDirectory(Context ctx) {
         SharedPreferences sp = getSharedPreferences(ctx);
         String musicDirectory = sp.getString("mpd_music_directory", MPDConf.DEFAULT_MUSIC_DIRECTORY);
         String lastMusicDirectory = sp.getString("last_music_directory", null);
+
+        File dbDir = DatabaseCache.select(ctx, musicDirectory, lastMusicDirectory,
+                DB_FILE, STATE_FILE, getDatabaseCacheSize(sp));
+        if (lastMusicDirectory != null) {
+            Editor editor = sp.edit();
+            editor.remove("last_music_directory");
+            editor.commit();
+        }
+        return dbDir;
+    }
+
+    /*
+     * Generate the config entries from the preferences, with the database
+     * and the state in dbDir (see selectDatabaseDirectory()).
+     */
+    static Entries generate(Context ctx, File dbDir) {
+        Entries entries = new Entries();
+
+        SharedPreferences sp = getSharedPreferences(ctx);
+        String musicDirectory = sp.getString("mpd_music_directory", MPDConf.DEFAULT_MUSIC_DIRECTORY);
         boolean useMixer = sp.getBoolean("mpd_mixer", true);
-        String audioOutput = sp.getString("mpd_output", ctx.getString(R.string.mpd_default_output));
+        String audioOutput = getAudioOutput(ctx, sp);
         String port = sp.getString("mpd_port", MPDConf.PORT_DEFAULT);
+        String replayGain = sp.getString("mpd_replaygain", ctx.getString(R.string.mpd_default_replaygain));
+        String bufferSize = sp.getString("mpd_buffer_size", BUFFER_AUTO);
+        String bufferBeforePlay = sp.getString("mpd_buffer_before_play",
+                ctx.getString(R.string.mpd_default_buffer_before_play));
+        String bufferTime = sp.getString("mpd_buffer_time", BUFFER_AUTO);
+        String resampler = sp.getString("mpd_resampler", RESAMPLER_AUTO);
+        if (resampler.equals(RESAMPLER_AUTO) || !hasCapability(LibMPD.CAP_SAMPLERATE))
+            resampler = getDefaultResampler();
 
         Log.d(TAG, "musicDirectory: " + musicDirectory);
-        if (lastMusicDirectory == null || !musicDirectory.equals(lastMusicDirectory)) {
-            Editor editor = sp.edit();
-            editor.putString("last_music_directory", musicDirectory);
-            editor.commit();
-            Log.d(TAG, "music directory changed: clean db & state");
 
-            File file = ctx.getFileStreamPath(STATE_FILE);
-            if (file.exists())
-                file.delete();
-            file = ctx.getFileStreamPath(DB_FILE);
-            if (file.exists())
-                file.delete();
-        }
+        String dbPath = dbDir.getAbsolutePath() + "/";
 
         String appPath = ctx.getFilesDir().getAbsolutePath() + "/";
         File f = new File(appPath+PLAYLISTS_FILE);
         if (f.mkdirs() || f.isDirectory())
             entries.put("playlist_directory", appPath+PLAYLISTS_FILE);
-        entries.put("db_file", appPath+DB_FILE);
-        entries.put("sticker_file", appPath+STICKER_FILE);
-        entries.put("state_file",appPath+STATE_FILE);
+        /*
+         * A simple database plugin built with zlib reads both formats,
+         * compress only selects the format it writes (see
+         * DatabaseCache.convert()). Without it, the plain db_file of the
+         * previous versions is kept.
+         */
+        if (hasCapability(LibMPD.CAP_COMPRESSED_DB)) {
+            Entries databaseBlock = new Entries();
+            databaseBlock.put("plugin", "simple");
+            databaseBlock.put("path", dbPath+DB_FILE);
+            databaseBlock.put("compress", isDatabaseCompressed(ctx) ? "yes" : "no");
+            entries.put("database", databaseBlock);
+        } else {
+            entries.put("db_file", dbPath+DB_FILE);
+        }
+        entries.put("sticker_file", getStickerFile(ctx).getAbsolutePath());
+        entries.put("state_file", dbPath+STATE_FILE);
         entries.put("log_file", LOG_FILE_DEFAULT);
 
-        entries.put("log_level", LOG_LEVEL_DEFAULT);
+        /*
+         * With a libmpd that logs through mpd_jni (see LibMPD.getLog()),
+         * log_file is not written and the lines are filtered again by
+         * getLogLevel().
+         */
+        String logLevel = sp.getString("mpd_log_level", LOG_LEVEL_DEFAULT);
+        entries.put("log_level", logLevel.equals(LOG_LEVEL_VERBOSE) ? LOG_LEVEL_VERBOSE
+                : LOG_LEVEL_DEFAULT);
         entries.put("restore_paused", RESTORE_PAUSED_DEFAULT);
         entries.put("auto_update", AUTO_UPDATE_DEFAULT);
+        entries.put("replaygain", replayGain, "replay_gain_mode");
+
+        /*
+         * The adaptive level changes while mpd runs (see AdaptiveBuffer), its
+         * sizes are startup entries so that it doesn't restart mpd.
+         */
+        int bufferLevel = AdaptiveBuffer.getLevel(ctx);
+        if (bufferSize.equals(BUFFER_AUTO))
+            entries.putStartup("audio_buffer_size",
+                    String.valueOf(AdaptiveBuffer.getBufferSize(bufferLevel)));
+        else
+            entries.put("audio_buffer_size", bufferSize);
+        entries.put("buffer_before_play", bufferBeforePlay);
+        entries.put("samplerate_converter", resampler);
 
         entries.put("music_directory", musicDirectory);
         entries.put("port", port);
+        List<String> bindAddresses = getBindAddresses(ctx);
+        if (bindAddresses != null) {
+            for (String address : bindAddresses)
+                entries.put("bind_to_address", address);
+        }
 
+        /*
+         * The outputs are structural: mpd creates the outputs and their
+         * mixer from the config at startup and can't add, remove or change
+         * them at runtime. enableoutput/disableoutput only toggle an output
+         * that is already configured, so the output type, the mixer and the
+         * httpd output (added or removed by its setting) restart mpd.
+         */
         Entries audioOutputBlock = new Entries();
         audioOutputBlock.put("type", audioOutput);
         if (!useMixer)
             audioOutputBlock.put("mixer_type", "none");
         audioOutputBlock.put("name", audioOutput);
+        /*
+         * Only the jni output reads a buffer time (the size of its ring, in
+         * ms), opensles_android and audiotrack size their buffers themselves.
+         */
+        if (audioOutput.equals(OUTPUT_JNI)) {
+            if (bufferTime.equals(BUFFER_AUTO))
+                audioOutputBlock.putStartup("buffer_time",
+                        String.valueOf(AdaptiveBuffer.getBufferTime(bufferLevel)));
+            else
+                audioOutputBlock.put("buffer_time", bufferTime);
+        }
         entries.put("audio_output", audioOutputBlock);
 
+        if (sp.getBoolean("mpd_httpd", false)) {
+            Entries httpdBlock = getHttpdBlock(sp, port);
+            if (httpdBlock != null)
+                entries.put("audio_output", httpdBlock);
+        }
+
+        List<String> hwMimeTypes = getHardwareMimeTypes(sp);
+        if (!hwMimeTypes.isEmpty()) {
+            /*
+             * The mediacodec plugin declines the streams its hardware codec
+             * can't open, libav decodes them.
+             */
+            Entries decoderBlock = new Entries();
+            decoderBlock.put("plugin", "mediacodec");
+            decoderBlock.put("enabled", "yes");
+            decoderBlock.put("mime_types", join(hwMimeTypes, ","));
+            entries.put("decoder", decoderBlock);
+        }
+
         Entries inputBlock = new Entries();
         inputBlock.put("plugin", "curl");
         entries.put("input", inputBlock);
@@ -202,8 +490,7 @@ public class MPDConf {
         soundcloudBlock.put("enabled", "true");
         soundcloudBlock.put("apikey", "c4c979fd6f241b5b30431d722af212e8");
         entries.put("playlist_plugin", soundcloudBlock);
-
-        write(ctx, entries);
+        return entries;
     }
 
     /**
@@ -214,6 +501,261 @@ public class MPDConf {
         return ctx.getSharedPreferences("mpdconf", Context.MODE_PRIVATE|Context.MODE_MULTI_PROCESS);
     }
 
+    private static long getDatabaseCacheSize(SharedPreferences sp) {
+        String size = sp.getString("mpd_db_cache_size", MPDConf.DB_CACHE_SIZE_DEFAULT);
+        try {
+            return Long.parseLong(size) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            return Long.parseLong(MPDConf.DB_CACHE_SIZE_DEFAULT) * 1024 * 1024;
+        }
+    }
+
+    /**
+     * Return the addresses mpd listens on, or null if it listens on all the
+     * interfaces. 127.0.0.1 is always part of them: the service connects to
+     * mpd through it.
+     */
+    public static List<String> getBindAddresses(Context ctx) {
+        String bind = getSharedPreferences(ctx).getString("mpd_bind", BIND_ANY);
+        List<String> addresses;
+
+        if (bind.equals(BIND_NETWORK)) {
+            addresses = new ArrayList<String>();
+            addresses.add(LOCALHOST);
+            addresses.addAll(NetworkAddresses.getLocal());
+        } else if (bind.equals(BIND_LOCALHOST)) {
+            addresses = new ArrayList<String>();
+            addresses.add(LOCALHOST);
+        } else {
+            addresses = null;
+        }
+        return addresses;
+    }
+
+    /**
+     * Return the ThreadScheduler.FLAG_* of the mpd audio threads.
+     */
+    public static int getSchedulingFlags(Context ctx) {
+        SharedPreferences sp = getSharedPreferences(ctx);
+        int flags = 0;
+        if (sp.getBoolean("mpd_thread_priority", true))
+            flags |= ThreadScheduler.FLAG_PRIORITY;
+        if (sp.getBoolean("mpd_big_cores", false))
+            flags |= ThreadScheduler.FLAG_BIG_CORES;
+        return flags;
+    }
+
+    /**
+     * Return the time to keep the wakelock once mpd is inactive, in ms.
+     */
+    public static long getWakelockGracePeriod(Context ctx) {
+        SharedPreferences sp = getSharedPreferences(ctx);
+        return parseInt(sp.getString("wakelock_grace_period", WAKELOCK_GRACE_PERIOD_DEFAULT),
+                WAKELOCK_GRACE_PERIOD_DEFAULT) * 1000L;
+    }
+
+    public static File getStickerFile(Context ctx) {
+        return new File(ctx.getFilesDir(), STICKER_FILE);
+    }
+
+    /**
+     * Return the LibMPD.STICKER_* flags of the sticker database.
+     */
+    public static int getStickerFlags(Context ctx) {
+        SharedPreferences sp = getSharedPreferences(ctx);
+        int flags = 0;
+        if (sp.getBoolean("mpd_sticker_wal", true))
+            flags |= LibMPD.STICKER_WAL;
+        if (sp.getString("mpd_sticker_sync", STICKER_SYNC_NORMAL).equals(STICKER_SYNC_NORMAL))
+            flags |= LibMPD.STICKER_SYNC_NORMAL;
+        return flags;
+    }
+
+    /**
+     * Return the page cache size of the sticker database, in KB.
+     */
+    public static int getStickerCacheSize(Context ctx) {
+        return parseInt(getSharedPreferences(ctx).getString("mpd_sticker_cache_size",
+                STICKER_CACHE_SIZE_DEFAULT), STICKER_CACHE_SIZE_DEFAULT);
+    }
+
+    /**
+     * Return the LibMPD.LOG_* level of the mpd log.
+     */
+    public static int getLogLevel(Context ctx) {
+        String level = getSharedPreferences(ctx).getString("mpd_log_level", LOG_LEVEL_DEFAULT);
+        if (level.equals(LOG_LEVEL_VERBOSE))
+            return LibMPD.LOG_DEBUG;
+        else if (level.equals(LOG_LEVEL_WARNING))
+            return LibMPD.LOG_WARNING;
+        return LibMPD.LOG_DEFAULT;
+    }
+
+    /**
+     * Return the file the mpd log is flushed to, see LibMPD.flushLog().
+     */
+    public static File getLogFile(Context ctx) {
+        return new File(ctx.getFilesDir(), LOG_RING_FILE);
+    }
+
+    /*
+     * Return the audio_output block of the httpd streaming output, null if its
+     * port is invalid.
+     *
+     * The httpd output of mpd encodes once: every listener is sent the pages
+     * of the same encoded stream, a listener costs a socket and a queue of
+     * references to these pages, not an encoder.
+     */
+    private static Entries getHttpdBlock(SharedPreferences sp, String mpdPort) {
+        String port = sp.getString("mpd_httpd_port", HTTPD_PORT_DEFAULT);
+        String encoder = sp.getString("mpd_httpd_encoder", HTTPD_ENCODER_DEFAULT);
+        /* wave is built in mpd, the other encoders need their libs */
+        if ((encoder.equals("vorbis") && !hasCapability(LibMPD.CAP_VORBIS_ENCODER))
+                || (encoder.equals("lame") && !hasCapability(LibMPD.CAP_LAME_ENCODER))) {
+            Log.w(TAG, "no " + encoder + " encoder in libmpd, using " + HTTPD_ENCODER_DEFAULT);
+            encoder = HTTPD_ENCODER_DEFAULT;
+        }
+        int portValue = parseInt(port, "0");
+        if (portValue < 1024 || portValue > 65535 || port.equals(mpdPort)) {
+            Log.w(TAG, "invalid httpd port: " + port);
+            return null;
+        }
+
+        Entries httpdBlock = new Entries();
+        httpdBlock.put("type", "httpd");
+        httpdBlock.put("name", "aMPD stream");
+        httpdBlock.put("port", port);
+        /*
+         * httpd takes a single address: it only follows the localhost choice
+         * of mpd_bind, "network" listens on all the interfaces.
+         */
+        if (sp.getString("mpd_bind", BIND_ANY).equals(BIND_LOCALHOST))
+            httpdBlock.put("bind_to_address", LOCALHOST);
+        httpdBlock.put("encoder", encoder);
+        // wave has no bitrate
+        if (!encoder.equals("wave"))
+            httpdBlock.put("bitrate", sp.getString("mpd_httpd_bitrate", HTTPD_BITRATE_DEFAULT));
+        httpdBlock.put("format", HTTPD_FORMAT);
+        httpdBlock.put("max_clients", sp.getString("mpd_httpd_max_clients",
+                HTTPD_MAX_CLIENTS_DEFAULT));
+        httpdBlock.put("mixer_type", "none");
+        return httpdBlock;
+    }
+
+    /*
+     * Return the mime types decoded by MediaCodecDecoder, from the
+     * mpd_hw_decoder whitelist. None without the mediacodec hook of libmpd.
+     */
+    private static List<String> getHardwareMimeTypes(SharedPreferences sp) {
+        String whitelist = sp.getString("mpd_hw_decoder", HW_DECODER_DEFAULT);
+        List<String> mimeTypes = new ArrayList<String>();
+
+        if (whitelist.equals("off") || !hasCapability(LibMPD.CAP_MEDIACODEC)
+                || !MediaCodecDecoder.isSupported())
+            return mimeTypes;
+        if (whitelist.equals("aac") || whitelist.equals("aac_mp3"))
+            mimeTypes.add(MediaCodecDecoder.MIME_AAC);
+        if (whitelist.equals("aac_mp3"))
+            mimeTypes.add(MediaCodecDecoder.MIME_MP3);
+        return mimeTypes;
+    }
+
+    private static String join(List<String> values, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0)
+                sb.append(separator);
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static int parseInt(String value, String defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    /**
+     * Set the LibMPD.CAP_* flags of libmpd: the options that it doesn't
+     * support are not generated.
+     */
+    public static void setCapabilities(int capabilities) {
+        sCapabilities = capabilities;
+    }
+
+    private static boolean hasCapability(int capability) {
+        return (sCapabilities & capability) != 0;
+    }
+
+    /*
+     * "internal" is the zero-order hold of mpd, the sinc resamplers need
+     * libsamplerate and are too slow for single core devices.
+     */
+    private static String getDefaultResampler() {
+        if (!hasCapability(LibMPD.CAP_SAMPLERATE))
+            return "internal";
+        switch (CpuFeatures.getPerformanceClass()) {
+            case CpuFeatures.CLASS_LOW:
+                return "internal";
+            case CpuFeatures.CLASS_HIGH:
+                return "Medium Sinc Interpolator";
+            default:
+                return "Fastest Sinc Interpolator";
+        }
+    }
+
+    /*
+     * The jni output plugin is only in a libmpd that has the jni output
+     * hook, audiotrack is used instead.
+     */
+    private static String getAudioOutput(Context ctx, SharedPreferences sp) {
+        String audioOutput = sp.getString("mpd_output", ctx.getString(R.string.mpd_default_output));
+        if (audioOutput.equals(OUTPUT_JNI) && !hasCapability(LibMPD.CAP_JNI_OUTPUT)) {
+            Log.w(TAG, "no jni output in libmpd, using " + OUTPUT_AUDIOTRACK);
+            return OUTPUT_AUDIOTRACK;
+        }
+        return audioOutput;
+    }
+
+    /**
+     * Return true if the buffers are sized by AdaptiveBuffer.
+     */
+    public static boolean isBufferAdaptive(Context ctx) {
+        SharedPreferences sp = getSharedPreferences(ctx);
+        return sp.getString("mpd_buffer_size", BUFFER_AUTO).equals(BUFFER_AUTO)
+                || (getAudioOutput(ctx, sp).equals(OUTPUT_JNI)
+                        && sp.getString("mpd_buffer_time", BUFFER_AUTO).equals(BUFFER_AUTO));
+    }
+
+    /**
+     * Return true if the database is stored gzip compressed: less to read
+     * from slow storage, more cpu to parse it. Only if libmpd can read it
+     * (LibMPD.CAP_COMPRESSED_DB).
+     */
+    public static boolean isDatabaseCompressed(Context ctx) {
+        return hasCapability(LibMPD.CAP_COMPRESSED_DB)
+                && getSharedPreferences(ctx).getString("mpd_db_format", DB_FORMAT_DEFAULT)
+                .equals(DB_FORMAT_COMPRESSED);
+    }
+
+    public static File getDatabaseFile(Context ctx) {
+        String musicDirectory = getSharedPreferences(ctx).getString("mpd_music_directory",
+                MPDConf.DEFAULT_MUSIC_DIRECTORY);
+        return new File(DatabaseCache.getDirectory(ctx, musicDirectory), DB_FILE);
+    }
+
+    public static int getPort(Context ctx) {
+        String port = getSharedPreferences(ctx).getString("mpd_port", MPDConf.PORT_DEFAULT);
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(MPDConf.PORT_DEFAULT);
+        }
+    }
+
     public static String getPath(Context ctx) {
         return ctx.getFilesDir()+"/"+CONF_FILE;
     }
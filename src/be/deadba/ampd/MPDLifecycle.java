@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Lifecycle of the mpd daemon:
+ *
+ * STOPPED -> STARTING -> READY -> STOPPING -> STOPPED, and FAILED when mpd
+ * can't start or exits with an error. mpd exiting by itself without error
+ * (killed by a client) is a stop. A restart goes from STOPPING to
+ * STARTING directly.
+ *
+ * Requests only record what is wanted and all transitions are done by one
+ * dedicated thread, never by the caller. Requests received while a
+ * transition is running are coalesced: any number of restart requests
+ * received while mpd is starting result in one restart, a stop request
+ * cancels the pending restarts, and a pending reload is dropped by a
+ * (re)start since it reads the config again. Reloads are delayed until mpd
+ * is ready.
+ *
+ * Events of the daemon (ready, error) are tagged with the generation of the
+ * start that produced them, so that late events of a previous run are
+ * ignored.
+ */
+public class MPDLifecycle {
+    private static final String TAG = "MPDLifecycle";
+    /*
+     * shutdown() is called from the main thread (Service.onDestroy()), it
+     * only waits a bit for mpd: the stop goes on in the lifecycle thread.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 500; // in ms
+
+    public static final int STATE_STOPPED = 0;
+    public static final int STATE_STARTING = 1;
+    public static final int STATE_READY = 2;
+    public static final int STATE_STOPPING = 3;
+    public static final int STATE_FAILED = 4;
+
+    private static final String sStateNames[] = new String[] {
+        "stopped",
+        "starting",
+        "ready",
+        "stopping",
+        "failed",
+    };
+
+    private static final int ACTION_NONE = 0;
+    private static final int ACTION_START = 1;
+    private static final int ACTION_STOP = 2;
+    private static final int ACTION_RESTART = 3;
+    private static final int ACTION_RELOAD = 4;
+    private static final int ACTION_READY = 5;
+    private static final int ACTION_FAIL = 6;
+    private static final int ACTION_EXIT = 7;
+
+    /**
+     * Operations on the daemon, called from the lifecycle thread.
+     */
+    public interface Daemon {
+        /**
+         * Start mpd, that calls onReady() or onError() with generation later.
+         *
+         * @return false if mpd can't be started
+         */
+        public boolean start(int generation);
+
+        /**
+         * Stop mpd and wait for its termination.
+         */
+        public void stop();
+
+        /**
+         * Reload the config.
+         *
+         * @return MPDConf.RELOAD_NONE, RELOAD_LIVE or RELOAD_RESTART
+         */
+        public int reload(List<String> liveCommands);
+
+        /**
+         * Apply commands returned by reload() to the running mpd.
+         */
+        public void applyLive(List<String> liveCommands);
+    }
+
+    public interface Listener {
+        /**
+         * Called from the lifecycle thread after each transition.
+         */
+        public void onStateChanged(int oldState, int newState);
+    }
+
+    private final Daemon mDaemon;
+    private final Listener mListener;
+    private final ExecutorService mExecutor;
+
+    private final Object mLock = new Object();
+    /* guarded by mLock */
+    private boolean mWantRunning = false;
+    private boolean mRestartPending = false;
+    private boolean mReloadPending = false;
+    private boolean mScheduled = false;
+    private int mReadyGeneration = -1;
+    private int mFailedGeneration = -1;
+    private int mExitedGeneration = -1;
+
+    /* written from the lifecycle thread only */
+    private volatile int mState = STATE_STOPPED;
+    private volatile int mGeneration = 0;
+
+    private final Runnable mProcess = new Runnable() {
+        @Override
+        public void run() {
+            int action;
+            while ((action = nextAction()) != ACTION_NONE)
+                perform(action);
+        }
+    };
+
+    public MPDLifecycle(Daemon daemon, Listener listener) {
+        mDaemon = daemon;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG);
+            }
+        });
+    }
+
+    public static String getStateName(int state) {
+        return state >= 0 && state < sStateNames.length ? sStateNames[state] : String.valueOf(state);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Return true if the events of generation are from the current run.
+     */
+    public boolean isCurrent(int generation) {
+        return generation == mGeneration;
+    }
+
+    private void schedule() {
+        if (!mScheduled && !mExecutor.isShutdown()) {
+            mScheduled = true;
+            mExecutor.execute(mProcess);
+        }
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            mWantRunning = true;
+            schedule();
+        }
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            mWantRunning = false;
+            schedule();
+        }
+    }
+
+    /**
+     * Restart mpd, or start it if it isn't running.
+     */
+    public void restart() {
+        synchronized (mLock) {
+            mWantRunning = true;
+            mRestartPending = true;
+            schedule();
+        }
+    }
+
+    public void reload() {
+        synchronized (mLock) {
+            mReloadPending = true;
+            schedule();
+        }
+    }
+
+    public void onReady(int generation) {
+        synchronized (mLock) {
+            mReadyGeneration = generation;
+            schedule();
+        }
+    }
+
+    public void onError(int generation) {
+        synchronized (mLock) {
+            mFailedGeneration = generation;
+            schedule();
+        }
+    }
+
+    public void onExit(int generation) {
+        synchronized (mLock) {
+            mExitedGeneration = generation;
+            schedule();
+        }
+    }
+
+    /**
+     * Stop mpd and the lifecycle thread, wait for them up to
+     * SHUTDOWN_TIMEOUT.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mWantRunning = false;
+            schedule();
+            mExecutor.shutdown();
+        }
+        try {
+            if (!mExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+                Log.w(TAG, "mpd is still stopping");
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /*
+     * Return the next transition to do, ACTION_NONE if the current state is
+     * the wanted one.
+     */
+    private int nextAction() {
+        synchronized (mLock) {
+            final int state = mState;
+            final boolean running = state == STATE_STARTING || state == STATE_READY;
+
+            if (mFailedGeneration == mGeneration && running) {
+                mFailedGeneration = -1;
+                return ACTION_FAIL;
+            }
+            if (mExitedGeneration == mGeneration && running) {
+                mExitedGeneration = -1;
+                return ACTION_EXIT;
+            }
+            if (mReadyGeneration == mGeneration && state == STATE_STARTING) {
+                mReadyGeneration = -1;
+                return ACTION_READY;
+            }
+            if (!mWantRunning) {
+                mRestartPending = false;
+                if (running)
+                    return ACTION_STOP;
+            } else if (!running) {
+                mRestartPending = false;
+                mReloadPending = false;
+                return ACTION_START;
+            } else if (mRestartPending) {
+                mRestartPending = false;
+                mReloadPending = false;
+                return ACTION_RESTART;
+            }
+            if (mReloadPending && state != STATE_STARTING) {
+                mReloadPending = false;
+                return ACTION_RELOAD;
+            }
+            mScheduled = false;
+            return ACTION_NONE;
+        }
+    }
+
+    private void setState(int state) {
+        final int oldState = mState;
+        mState = state;
+        Log.d(TAG, getStateName(oldState) + " -> " + getStateName(state));
+        if (mListener != null)
+            mListener.onStateChanged(oldState, state);
+    }
+
+    private void startDaemon() {
+        mGeneration++;
+        setState(STATE_STARTING);
+        if (!mDaemon.start(mGeneration)) {
+            synchronized (mLock) {
+                mWantRunning = false;
+            }
+            setState(STATE_FAILED);
+        }
+    }
+
+    private void perform(int action) {
+        switch (action) {
+            case ACTION_START:
+                startDaemon();
+                break;
+            case ACTION_STOP:
+                setState(STATE_STOPPING);
+                mDaemon.stop();
+                setState(STATE_STOPPED);
+                break;
+            case ACTION_RESTART:
+                setState(STATE_STOPPING);
+                mDaemon.stop();
+                startDaemon();
+                break;
+            case ACTION_RELOAD: {
+                List<String> liveCommands = new ArrayList<String>();
+                final int result = mDaemon.reload(liveCommands);
+                if (mState != STATE_READY)
+                    break;
+                if (result == MPDConf.RELOAD_RESTART) {
+                    synchronized (mLock) {
+                        mRestartPending = true;
+                    }
+                } else if (result == MPDConf.RELOAD_LIVE) {
+                    mDaemon.applyLive(liveCommands);
+                }
+                break;
+            }
+            case ACTION_READY:
+                setState(STATE_READY);
+                break;
+            case ACTION_FAIL:
+                synchronized (mLock) {
+                    mWantRunning = false;
+                }
+                mDaemon.stop();
+                setState(STATE_FAILED);
+                break;
+            case ACTION_EXIT:
+                synchronized (mLock) {
+                    mWantRunning = false;
+                }
+                mDaemon.stop();
+                setState(STATE_STOPPED);
+                break;
+        }
+    }
+}
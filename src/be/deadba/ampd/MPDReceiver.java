@@ -30,6 +30,7 @@ public class MPDReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         Log.d("MPDReceiver", "onReceive: " + intent);
         if (intent.getAction() == "android.intent.action.BOOT_COMPLETED") {
+            StartupTrace.mark("MPDReceiver.onReceive");
             SharedPreferences prefs = MPDConf.getSharedPreferences(context);
             if (prefs != null && prefs.getBoolean("run_on_boot", false))
                 MPDService.start(context);
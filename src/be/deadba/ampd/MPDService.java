@@ -19,7 +19,13 @@
 
 package be.deadba.ampd;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
@@ -28,12 +34,10 @@ import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
-import android.os.PowerManager;
-import android.os.RemoteCallbackList;
-import android.os.RemoteException;
 import android.util.Log;
 
-public class MPDService extends Service implements LibMPD.OnErrorListener {
+public class MPDService extends Service implements MPDLifecycle.Daemon, MPDLifecycle.Listener,
+        PlayerWatcher.Listener, NetworkAddresses.Listener {
     private static final String TAG = "MPDService";
 
     static class ServiceStub extends IMPDService.Stub {
@@ -42,22 +46,35 @@ public class MPDService extends Service implements LibMPD.OnErrorListener {
             mService = service;
         }
         public void start() {
-            mService.postStart();
+            mService.requestStart();
         }
         public void stop() {
-            mService.postStop();
+            mService.mLifecycle.stop();
+        }
+        public void restart() {
+            mService.mLifecycle.restart();
         }
-        public void kill() {
-            /*
-             * mpd can't be turned off and on again:
-             * Kill current process (used only by this current Service)
-             * so that next service start will be on a new clean process
-             */
-            System.exit(0);
+        public void reload() {
+            mService.mLifecycle.reload();
         }
         public boolean isRunning() {
             return mService.isRunning();
         }
+        public List<String> getStartupTrace() {
+            return StartupTrace.getEvents();
+        }
+        public MPDStats getStats() {
+            return mService.getStats();
+        }
+        public int getCapabilities() {
+            return LibMPD.getCapabilities();
+        }
+        public List<String> getAddresses() {
+            return mService.getAddresses();
+        }
+        public List<String> getLog(int maxLines) {
+            return LibMPD.getLog(maxLines);
+        }
         public void registerCallback(IMPDServiceCallback cb) {
             mService.registerCallback(cb);
         }
@@ -66,33 +83,63 @@ public class MPDService extends Service implements LibMPD.OnErrorListener {
         }
     }
 
-    private final RemoteCallbackList<IMPDServiceCallback> mCallbacks = new RemoteCallbackList<IMPDServiceCallback>();
+    private final CallbackDispatcher mDispatcher = new CallbackDispatcher();
     private final IBinder mBinder = new ServiceStub(this);
-    private boolean mIsRunning = false;
-    private PowerManager.WakeLock mWakelock = null;
-
-    private final int MSG_START = 0;
-    private final int MSG_STOP = 1;
-    private final int MSG_ERROR = 2;
+    private final MPDLifecycle mLifecycle = new MPDLifecycle(this, this);
+    private PowerLocks mPowerLocks = null;
+    private final NetworkAddresses mNetworkAddresses = new NetworkAddresses(this, this);
+    private final long[] mNativeStats = new long[LibMPD.STAT_COUNT];
+    private final StatsCollector mStatsCollector = new StatsCollector(this);
+    private final Object mStatsLock = new Object();
+    private MusicWatcher mMusicWatcher = null;
+    private volatile PlayerWatcher mPlayerWatcher = null;
+    private volatile String mNowPlaying = null;
+    private final AdaptiveBuffer mAdaptiveBuffer = new AdaptiveBuffer(this);
+    private final ThreadScheduler mThreadScheduler = new ThreadScheduler();
+    private volatile boolean mWasPlaying = false;
+    private volatile boolean mIsReady = false;
+
+    private final int MSG_ADAPT = 0;
+    private final int MSG_PLAYER = 1;
+    private final int MSG_CLIENTS = 2;
+    private final int MSG_SCHEDULE = 3;
+
+    /* the output thread is created a bit after the playback starts */
+    private static final long SCHEDULE_DELAY = 1000; // in ms
+
+    /*
+     * mpd has no idle event for client connections: the client count is
+     * polled while the player is idle.
+     */
+    private static final long CLIENTS_POLL_INTERVAL = 15000; // in ms
+
+    private final Runnable mReleasePowerLocks = new Runnable() {
+        @Override
+        public void run() {
+            if (!isRunning())
+                mPowerLocks.release();
+        }
+    };
 
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_START:
-                    start();
-                    /*
-                     * keep the service running when the caller (SettingsActivity) disconnect (onDestroy)
-                     */
-                    startService(new Intent(MPDService.this, MPDService.class));
+                case MSG_PLAYER:
+                    onPlayerChanged((PlayerState) msg.obj);
+                    break;
+                case MSG_CLIENTS:
+                    updatePowerLocks();
                     break;
-                case MSG_STOP:
-                    stopSelf();
-                    stop(false);
+                case MSG_SCHEDULE:
+                    if (mIsReady)
+                        mThreadScheduler.apply();
                     break;
-                case MSG_ERROR:
-                    stopSelf();
-                    stop(true);
+                case MSG_ADAPT:
+                    if (mIsReady) {
+                        mAdaptiveBuffer.sample();
+                        sendEmptyMessageDelayed(MSG_ADAPT, AdaptiveBuffer.SAMPLE_INTERVAL);
+                    }
                     break;
             }
         }
@@ -104,127 +151,362 @@ public class MPDService extends Service implements LibMPD.OnErrorListener {
     }
 
     @Override
-    public void onError(int ret) {
-        Log.d(TAG, "LibMPD returned an error: " + ret);
-        postError();
+    public void onPlayerStateChanged(PlayerState state) {
+        mHandler.removeMessages(MSG_PLAYER);
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PLAYER, state));
     }
 
-    private void postError() {
-        mHandler.removeCallbacksAndMessages(null);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ERROR));
+    @Override
+    public void onAddressesChanged() {
+        if (isRunning() && MPDConf.getSharedPreferences(this).getString("mpd_bind",
+                MPDConf.BIND_ANY).equals(MPDConf.BIND_NETWORK)) {
+            /* mpd is restarted if it must be bound to new addresses */
+            mLifecycle.reload();
+        }
+        mDispatcher.post(CallbackDispatcher.EVENT_ADDRESSES, 0);
     }
 
-    private void postStop() {
-        if (!mHandler.hasMessages(MSG_ERROR)) {
-            mHandler.removeCallbacksAndMessages(null);
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP));
+    /*
+     * Return the addresses clients can connect to, as "host:port", from the
+     * NetworkAddresses cache.
+     */
+    private List<String> getAddresses() {
+        List<String> hosts = MPDConf.getBindAddresses(this);
+        if (hosts == null)
+            hosts = NetworkAddresses.getAll();
+        final String port = String.valueOf(MPDConf.getPort(this));
+
+        List<String> addresses = new ArrayList<String>();
+        for (String host : hosts) {
+            // the loopback address is not worth showing
+            if (hosts.size() == 1 || !host.equals("127.0.0.1"))
+                addresses.add(NetworkAddresses.format(host, port));
         }
+        return addresses;
     }
 
-    private void postStart() {
-        if (!mHandler.hasMessages(MSG_ERROR)) {
-            mHandler.removeCallbacksAndMessages(null);
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_START));
-        }
+    private void requestStart() {
+        mLifecycle.start();
+        /*
+         * keep the service running when the caller (SettingsActivity) disconnect (onDestroy)
+         */
+        startService(new Intent(this, MPDService.class));
     }
 
     private void signalStart() {
-        int i = mCallbacks.beginBroadcast();
-        while (i > 0) {
-            i--;
-            try {
-                mCallbacks.getBroadcastItem(i).onStart();
-            } catch (RemoteException e) {
+        mDispatcher.post(CallbackDispatcher.EVENT_START, 0);
+    }
+
+    private void signalPhase(int phase) {
+        mDispatcher.post(CallbackDispatcher.EVENT_PHASE, phase);
+    }
+
+    private void updateMusicWatcher() {
+        SharedPreferences sp = MPDConf.getSharedPreferences(this);
+
+        if (mIsReady && sp.getBoolean("mpd_watch", true)) {
+            if (mMusicWatcher == null) {
+                mMusicWatcher = new MusicWatcher(sp.getString("mpd_music_directory",
+                        MPDConf.DEFAULT_MUSIC_DIRECTORY), MPDConf.getPort(this));
+                mMusicWatcher.start();
             }
+        } else {
+            stopMusicWatcher();
         }
-        mCallbacks.finishBroadcast();
     }
 
-    private void signalStop(boolean error) {
-        int i = mCallbacks.beginBroadcast();
-        while (i > 0) {
-            i--;
-            try {
-                mCallbacks.getBroadcastItem(i).onStop(error);
-            } catch (RemoteException e) {
-            }
+    private void updateAdaptiveBuffer() {
+        mHandler.removeMessages(MSG_ADAPT);
+        /* without the underrun counter, the buffers keep their default level */
+        if (mIsReady && MPDConf.isBufferAdaptive(this)
+                && LibMPD.hasCapability(LibMPD.CAP_STATS)) {
+            mAdaptiveBuffer.reset();
+            mHandler.sendEmptyMessageDelayed(MSG_ADAPT, AdaptiveBuffer.SAMPLE_INTERVAL);
         }
-        mCallbacks.finishBroadcast();
     }
 
-    private synchronized boolean start() {
-        if (!mIsRunning && !LibMPD.isRunning()) {
-            SharedPreferences sp = MPDConf.getSharedPreferences(this);
+    private void startPlayerWatcher() {
+        stopPlayerWatcher();
+        mPlayerWatcher = new PlayerWatcher(MPDConf.getPort(this), this);
+        mPlayerWatcher.start();
+    }
 
-            MPDConf.reload(this);
+    private void stopPlayerWatcher() {
+        if (mPlayerWatcher != null) {
+            mPlayerWatcher.stop();
+            mPlayerWatcher = null;
+        }
+        mHandler.removeMessages(MSG_PLAYER);
+        mNowPlaying = null;
+    }
 
-            mIsRunning = LibMPD.start(this, this);
-            if (!mIsRunning) {
-                signalStop(true);
-                return false;
-            }
-            Log.d(TAG, "MPD started: " + this);
+    /**
+     * Return the last known state of the player, without any request to
+     * mpd.
+     */
+    public PlayerState getPlayerState() {
+        final PlayerWatcher watcher = mPlayerWatcher;
+        return watcher != null ? watcher.getState() : PlayerState.UNKNOWN;
+    }
 
-            if (sp.getBoolean("wakelock", false)) {
-                PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
-                mWakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-                mWakelock.acquire();
-                Log.d(TAG, "Wakelock acquired");
-            }
+    private void onPlayerChanged(PlayerState state) {
+        if (mLifecycle.getState() != MPDLifecycle.STATE_READY) {
+            mWasPlaying = false;
+            return;
+        }
+        if (state.isPlaying() && !mWasPlaying)
+            mHandler.sendEmptyMessageDelayed(MSG_SCHEDULE, SCHEDULE_DELAY);
+        mWasPlaying = state.isPlaying();
+
+        final String nowPlaying = state.isPlaying() ? state.song.getDisplayName() : null;
+        if (nowPlaying == null ? mNowPlaying != null : !nowPlaying.equals(mNowPlaying)) {
+            mNowPlaying = nowPlaying;
+            NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            nm.notify(R.string.notification_title_mpd_running, buildNotification());
+        }
+        updatePowerLocks();
+    }
 
-            Intent mainIntent = new Intent(this, SettingsActivity.class);
-            mainIntent.setAction("android.intent.action.MAIN");
-            mainIntent.addCategory("android.intent.category.LAUNCHER");
-            PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-                    mainIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+    /*
+     * Return the number of clients connected to mpd, except the connection of
+     * the PlayerWatcher, or -1 if unknown. Without the libmpd counter, the
+     * connections to the mpd port are counted from /proc/net.
+     */
+    private long getExternalClients() {
+        long clients;
+        synchronized (mNativeStats) {
+            LibMPD.getStats(mNativeStats);
+            clients = mNativeStats[LibMPD.STAT_CLIENTS];
+        }
+        if (clients < 0)
+            clients = TcpConnections.countEstablished(MPDConf.getPort(this));
+        if (clients < 0)
+            return -1;
+        return Math.max(0, getPlayerState() != PlayerState.UNKNOWN ? clients - 1 : clients);
+    }
 
-            Notification notification = new Notification.Builder(this)
-                    .setContentTitle(getText(R.string.notification_title_mpd_running))
-                    .setContentText(getText(R.string.notification_text_mpd_running))
-                    .setSmallIcon(R.drawable.ic_notification)
-                    .setContentIntent(contentIntent)
-                    .getNotification();
+    /*
+     * Hold the locks while mpd is playing or serving clients.
+     */
+    private void updatePowerLocks() {
+        mHandler.removeMessages(MSG_CLIENTS);
+        if (mLifecycle.getState() != MPDLifecycle.STATE_READY)
+            return;
+        if (getPlayerState().isPlaying()) {
+            mPowerLocks.update(true);
+        } else {
+            final long clients = getExternalClients();
+            mPowerLocks.update(clients > 0);
+            if (clients >= 0)
+                mHandler.sendEmptyMessageDelayed(MSG_CLIENTS, CLIENTS_POLL_INTERVAL);
+        }
+    }
+
+    private Notification buildNotification() {
+        Intent mainIntent = new Intent(this, SettingsActivity.class);
+        mainIntent.setAction("android.intent.action.MAIN");
+        mainIntent.addCategory("android.intent.category.LAUNCHER");
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                mainIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+        return new Notification.Builder(this)
+                .setContentTitle(getText(R.string.notification_title_mpd_running))
+                .setContentText(mNowPlaying != null ? mNowPlaying
+                        : getText(R.string.notification_text_mpd_running))
+                .setSmallIcon(R.drawable.ic_notification)
+                .setContentIntent(contentIntent)
+                .getNotification();
+    }
 
-            startForeground(R.string.notification_title_mpd_running, notification);
+    private void stopMusicWatcher() {
+        if (mMusicWatcher != null) {
+            mMusicWatcher.stop();
+            mMusicWatcher = null;
+        }
+    }
 
-            signalStart();
+    private void signalStop(boolean error) {
+        mDispatcher.post(CallbackDispatcher.EVENT_STOP, error ? 1 : 0);
+    }
+
+    @Override
+    public boolean start(final int generation) {
+        /* the capabilities are only known once the libs are loaded */
+        if (!LibMPD.load(this))
+            return false;
+        MPDConf.setCapabilities(LibMPD.getCapabilities());
+        mDispatcher.post(CallbackDispatcher.EVENT_CAPABILITIES, LibMPD.getCapabilities());
+        int token = StartupTrace.begin("MPDConf.reload");
+        MPDConf.reload(this);
+        StartupTrace.end(token);
 
-            Log.d(TAG, "start: " + mIsRunning + " / this: " + this);
+        /*
+         * mpd isn't running, its database can be converted. Without
+         * CAP_COMPRESSED_DB, a plain database is left as is and a compressed
+         * one is uncompressed, since libmpd can't read it.
+         */
+        File db = MPDConf.getDatabaseFile(this);
+        token = StartupTrace.begin("DatabaseCache.convert");
+        DatabaseCache.convert(db, MPDConf.isDatabaseCompressed(this));
+        StartupTrace.end(token);
+        /* format of the database that is loaded, see tools/dbbench */
+        if (db.exists()) {
+            StartupTrace.mark("db:" + (DatabaseCache.isCompressed(db) ? "compressed" : "uncompressed")
+                    + ":" + db.length());
         }
-        return mIsRunning;
+
+        return LibMPD.start(this, new LibMPD.Listener() {
+            @Override
+            public void onPhase(int phase) {
+                if (!mLifecycle.isCurrent(generation))
+                    return;
+                signalPhase(phase);
+                /*
+                 * clients are notified that mpd is started once it serves them
+                 */
+                if (phase == LibMPD.PHASE_READY)
+                    mLifecycle.onReady(generation);
+            }
+
+            @Override
+            public void onError(int ret) {
+                Log.d(TAG, "LibMPD returned an error: " + ret);
+                mLifecycle.onError(generation);
+            }
+
+            @Override
+            public void onExit() {
+                Log.d(TAG, "mpd exited");
+                mLifecycle.onExit(generation);
+            }
+        });
     }
 
-    private synchronized void stop(boolean error) {
-        if (mIsRunning) {
-            Log.d(TAG, "stop");
-            LibMPD.stop();
-            mIsRunning = false;
-            Log.d(TAG, "MPD stopped");
+    @Override
+    public void stop() {
+        LibMPD.stop();
+    }
+
+    /*
+     * Reload the configuration: mpd is only restarted (by the lifecycle) if
+     * a setting that it can't change while running changed, other settings
+     * are applied with protocol commands.
+     */
+    @Override
+    public int reload(List<String> liveCommands) {
+        /* keep the previous capabilities while the libs aren't loaded */
+        if (LibMPD.getCapabilities() >= 0)
+            MPDConf.setCapabilities(LibMPD.getCapabilities());
+        int result = MPDConf.reload(this, liveCommands);
+
+        if (isRunning()) {
+            updateWakelock();
+            updateMusicWatcher();
+            updateAdaptiveBuffer();
+            mThreadScheduler.configure(MPDConf.getSchedulingFlags(this));
+        }
+        return result;
+    }
 
-            if (mWakelock != null) {
-                mWakelock.release();
-                mWakelock = null;
+    @Override
+    public void applyLive(List<String> commands) {
+        MPDClient client = new MPDClient(MPDConf.getPort(this));
+        try {
+            client.connect();
+            for (String command : commands) {
+                Log.d(TAG, "apply: " + command);
+                client.command(command);
             }
-            stopForeground(true);
+        } catch (IOException e) {
+            Log.e(TAG, "can't apply live settings, restarting: " + e);
+            mLifecycle.restart();
+        }
+        client.close();
+    }
 
-            signalStop(true);
+    @Override
+    public void onStateChanged(int oldState, int newState) {
+        switch (newState) {
+            case MPDLifecycle.STATE_STARTING:
+                /* mpd is busy loading its database */
+                updateWakelock();
+                mPowerLocks.update(true);
+                startForeground(R.string.notification_title_mpd_running, buildNotification());
+                break;
+            case MPDLifecycle.STATE_READY:
+                mIsReady = true;
+                mWasPlaying = false;
+                updateMusicWatcher();
+                updateAdaptiveBuffer();
+                startPlayerWatcher();
+                mHandler.sendEmptyMessage(MSG_CLIENTS);
+                mThreadScheduler.configure(MPDConf.getSchedulingFlags(this));
+                mHandler.sendEmptyMessage(MSG_SCHEDULE);
+                signalStart();
+                break;
+            case MPDLifecycle.STATE_STOPPING:
+                mIsReady = false;
+                stopMusicWatcher();
+                stopPlayerWatcher();
+                break;
+            case MPDLifecycle.STATE_STOPPED:
+            case MPDLifecycle.STATE_FAILED:
+                mIsReady = false;
+                if (newState == MPDLifecycle.STATE_FAILED)
+                    LibMPD.flushLog();
+                mThreadScheduler.reset();
+                stopMusicWatcher();
+                stopPlayerWatcher();
+                /*
+                 * released from the handler, after a running
+                 * updatePowerLocks()
+                 */
+                mHandler.removeMessages(MSG_CLIENTS);
+                mHandler.post(mReleasePowerLocks);
+                stopForeground(true);
+                signalStop(newState == MPDLifecycle.STATE_FAILED);
+                stopSelf();
+                break;
         }
     }
 
-    private synchronized boolean isRunning() {
-        Log.d(TAG, "isRunning: " + mIsRunning);
-        return mIsRunning;
+    private void updateWakelock() {
+        SharedPreferences sp = MPDConf.getSharedPreferences(this);
+
+        mPowerLocks.configure(sp.getBoolean("wakelock", false),
+                MPDConf.getWakelockGracePeriod(this));
+    }
+
+    private boolean isRunning() {
+        final int state = mLifecycle.getState();
+        return state == MPDLifecycle.STATE_STARTING || state == MPDLifecycle.STATE_READY;
+    }
+
+    /*
+     * Called from binder threads: each call returns its own MPDStats, since
+     * the stub parcels it after the lock is released.
+     */
+    private MPDStats getStats() {
+        final MPDStats stats = new MPDStats();
+        synchronized (mStatsLock) {
+            mStatsCollector.sample(stats);
+            mPowerLocks.fillStats(stats);
+            stats.schedFlags = mThreadScheduler.getFlags();
+            stats.schedThreads = mThreadScheduler.getThreadCount();
+            JniAudioOutput.fillStats(stats);
+        }
+        return stats;
     }
 
-    private synchronized void registerCallback(IMPDServiceCallback cb) {
+    private void registerCallback(IMPDServiceCallback cb) {
         if (cb != null) {
-            mCallbacks.register(cb);
+            mDispatcher.register(cb);
         }
     }
 
-    private synchronized void unregisterCallback(IMPDServiceCallback cb) {
+    private void unregisterCallback(IMPDServiceCallback cb) {
         if (cb != null) {
-            mCallbacks.unregister(cb);
+            mDispatcher.unregister(cb);
         }
     }
 
@@ -233,6 +515,8 @@ public class MPDService extends Service implements LibMPD.OnErrorListener {
         // TODO Auto-generated method stub
         super.onCreate();
         stopForeground(true);
+        mPowerLocks = new PowerLocks(this, mHandler);
+        mNetworkAddresses.start();
 
         Log.d(TAG, "onCreate");
     }
@@ -240,7 +524,8 @@ public class MPDService extends Service implements LibMPD.OnErrorListener {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand: flags: " +flags+ " intent: " + intent);
-        start();
+        StartupTrace.mark("MPDService.onStartCommand");
+        mLifecycle.start();
         return START_STICKY;
     }
 
@@ -248,13 +533,10 @@ public class MPDService extends Service implements LibMPD.OnErrorListener {
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
         super.onDestroy();
-        stop(false);
-        /*
-         * mpd can't be turned off and on again:
-         * Kill current process (used only by this current Service)
-         * so that next service start will be on a new clean process
-         */
-        System.exit(0);
+        mLifecycle.shutdown();
+        mNetworkAddresses.stop();
+        mDispatcher.release();
+        mStatsCollector.release();
     }
 
     public static void start(Context context) {
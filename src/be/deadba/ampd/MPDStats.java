@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Runtime statistics of the mpd service process, see IMPDService.getStats().
+ * Values that are not available are set to -1.
+ */
+public class MPDStats implements Parcelable {
+    /* time since mpd was started, 0 if not running */
+    public long uptimeMs;
+    /* cpu time of the whole service process */
+    public long cpuTimeMs;
+    /* cpu time of the mpd threads */
+    public long mpdCpuTimeMs;
+    public int mpdThreads;
+    public long nativeHeapBytes;
+    public long underruns;
+    public long dbSizeBytes;
+    public long songs;
+    public long clients;
+    /* time the wakelock and the WiFi lock were held, see PowerLocks */
+    public long lockHeldMs;
+    public int lockAcquires;
+    /* ThreadScheduler.FLAG_* and number of tuned mpd threads */
+    public int schedFlags;
+    public int schedThreads;
+    /* native lib set, see LibMPD.getVariant(), null if not loaded */
+    public String libVariant;
+    /* ring of the jni output in bytes, see JniAudioOutput */
+    public int ringSize;
+    public int ringFill;
+    public int ringMinFill;
+    public long ringEmptyCount;
+
+    public MPDStats() {
+    }
+
+    private MPDStats(Parcel in) {
+        uptimeMs = in.readLong();
+        cpuTimeMs = in.readLong();
+        mpdCpuTimeMs = in.readLong();
+        mpdThreads = in.readInt();
+        nativeHeapBytes = in.readLong();
+        underruns = in.readLong();
+        dbSizeBytes = in.readLong();
+        songs = in.readLong();
+        clients = in.readLong();
+        lockHeldMs = in.readLong();
+        lockAcquires = in.readInt();
+        schedFlags = in.readInt();
+        schedThreads = in.readInt();
+        libVariant = in.readString();
+        ringSize = in.readInt();
+        ringFill = in.readInt();
+        ringMinFill = in.readInt();
+        ringEmptyCount = in.readLong();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(uptimeMs);
+        out.writeLong(cpuTimeMs);
+        out.writeLong(mpdCpuTimeMs);
+        out.writeInt(mpdThreads);
+        out.writeLong(nativeHeapBytes);
+        out.writeLong(underruns);
+        out.writeLong(dbSizeBytes);
+        out.writeLong(songs);
+        out.writeLong(clients);
+        out.writeLong(lockHeldMs);
+        out.writeInt(lockAcquires);
+        out.writeInt(schedFlags);
+        out.writeInt(schedThreads);
+        out.writeString(libVariant);
+        out.writeInt(ringSize);
+        out.writeInt(ringFill);
+        out.writeInt(ringMinFill);
+        out.writeLong(ringEmptyCount);
+    }
+
+    public static final Parcelable.Creator<MPDStats> CREATOR = new Parcelable.Creator<MPDStats>() {
+        @Override
+        public MPDStats createFromParcel(Parcel in) {
+            return new MPDStats(in);
+        }
+
+        @Override
+        public MPDStats[] newArray(int size) {
+            return new MPDStats[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "uptime: " + uptimeMs + "ms, cpu: " + cpuTimeMs + "ms, mpd cpu: " + mpdCpuTimeMs
+                + "ms (" + mpdThreads + " threads), native heap: " + nativeHeapBytes
+                + ", underruns: " + underruns + ", db: " + dbSizeBytes + " bytes / " + songs
+                + " songs, clients: " + clients + ", locks held: " + lockHeldMs + "ms ("
+                + lockAcquires + " times), scheduling: " + schedFlags + " (" + schedThreads
+                + " threads), libs: " + libVariant + ", ring: " + ringFill + "/" + ringSize
+                + " (min " + ringMinFill + ", emptied " + ringEmptyCount + " times)";
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Hardware audio decoder used by the mediacodec decoder plugin of mpd,
+ * through mpd_jni.
+ *
+ * Called from a mpd decoder thread only. The input and output buffers of
+ * MediaCodec are direct ByteBuffers: mpd_jni writes the compressed data into
+ * the input buffers and reads the PCM from the output buffers, nothing is
+ * copied on the Java side. Software codecs (OMX.google.*) are not used, the
+ * bundled libav decodes faster than them. Errors are returned as codes, the
+ * plugin then lets libav decode the stream.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MediaCodecDecoder {
+    private static final String TAG = "MediaCodecDecoder";
+    private static final long TIMEOUT = 10000; // in us
+
+    /* returned by dequeueInput() and dequeueOutput() */
+    public static final int TRY_AGAIN = -1;
+    public static final int END_OF_STREAM = -2;
+    public static final int ERROR = -3;
+
+    /*
+     * dequeueOutput() info, must match MC_INFO_* from mpd_jni: the buffer
+     * and its format are returned in one call.
+     */
+    public static final int INFO_OFFSET = 0;
+    public static final int INFO_SIZE = 1;
+    public static final int INFO_SAMPLE_RATE = 2;
+    public static final int INFO_CHANNELS = 3;
+    public static final int INFO_COUNT = 4;
+
+    /* mime types of the mpd_hw_decoder whitelist */
+    public static final String MIME_AAC = "audio/mp4a-latm";
+    public static final String MIME_MP3 = "audio/mpeg";
+
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private int mSampleRate;
+    private int mChannels;
+    private boolean mOutputEos = false;
+
+    private MediaCodecDecoder(MediaCodec codec, int sampleRate, int channels) {
+        mCodec = codec;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mInputBuffers = codec.getInputBuffers();
+        mOutputBuffers = codec.getOutputBuffers();
+    }
+
+    private static String findCodec(String mime) {
+        for (int i = MediaCodecList.getCodecCount() - 1; i >= 0; --i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.isEncoder() || info.getName().startsWith("OMX.google."))
+                continue;
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime))
+                    return info.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if MediaCodec is available, the hardware codecs are only
+     * looked up by create().
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Create and start a hardware decoder.
+     *
+     * @param csd codec specific data (like the AudioSpecificConfig of AAC),
+     * or null
+     * @return null if there is no hardware decoder for mime or if it failed
+     */
+    public static MediaCodecDecoder create(String mime, int sampleRate, int channels, byte[] csd) {
+        if (!isSupported())
+            return null;
+
+        final String name = findCodec(mime);
+        if (name == null) {
+            Log.d(TAG, "no hardware decoder for " + mime);
+            return null;
+        }
+
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(name);
+            MediaFormat format = MediaFormat.createAudioFormat(mime, sampleRate, channels);
+            if (csd != null)
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(csd));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            Log.d(TAG, name + ": " + mime + ", " + sampleRate + " Hz, " + channels + " channels");
+            return new MediaCodecDecoder(codec, sampleRate, channels);
+        } catch (RuntimeException e) {
+            // IllegalStateException, IllegalArgumentException or a codec error
+            Log.w(TAG, name + ": can't start: " + e);
+            if (codec != null)
+                codec.release();
+            return null;
+        }
+    }
+
+    /**
+     * @return the index of a free input buffer, TRY_AGAIN or ERROR
+     */
+    public int dequeueInput() {
+        try {
+            final int index = mCodec.dequeueInputBuffer(TIMEOUT);
+            return index >= 0 ? index : TRY_AGAIN;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "dequeueInput: " + e);
+            return ERROR;
+        }
+    }
+
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    public boolean queueInput(int index, int size, long ptsUs, boolean eos) {
+        try {
+            mCodec.queueInputBuffer(index, 0, size, ptsUs,
+                    eos ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            return true;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "queueInput: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Wait for decoded PCM, 16 bit interleaved. The format changes are
+     * handled here.
+     *
+     * @param info filled with the INFO_* of the buffer if one is returned
+     * @return the index of an output buffer, TRY_AGAIN, END_OF_STREAM or
+     * ERROR
+     */
+    public int dequeueOutput(int[] info) {
+        if (mOutputEos)
+            return END_OF_STREAM;
+        try {
+            while (true) {
+                final int index = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT);
+                if (index >= 0) {
+                    if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        mOutputEos = true;
+                        if (mInfo.size == 0) {
+                            mCodec.releaseOutputBuffer(index, false);
+                            return END_OF_STREAM;
+                        }
+                    }
+                    info[INFO_OFFSET] = mInfo.offset;
+                    info[INFO_SIZE] = mInfo.size;
+                    info[INFO_SAMPLE_RATE] = mSampleRate;
+                    info[INFO_CHANNELS] = mChannels;
+                    return index;
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    mOutputBuffers = mCodec.getOutputBuffers();
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat format = mCodec.getOutputFormat();
+                    mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    Log.d(TAG, "output format: " + mSampleRate + " Hz, " + mChannels + " channels");
+                } else {
+                    return TRY_AGAIN;
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "dequeueOutput: " + e);
+            return ERROR;
+        }
+    }
+
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    public void releaseOutput(int index) {
+        try {
+            mCodec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "releaseOutput: " + e);
+        }
+    }
+
+    /**
+     * Drop the pending buffers, after a seek.
+     */
+    public void flush() {
+        mOutputEos = false;
+        try {
+            mCodec.flush();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "flush: " + e);
+        }
+    }
+
+    public void release() {
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+        }
+        mCodec.release();
+    }
+}
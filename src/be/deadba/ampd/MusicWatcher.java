@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Watch the music directory and ask mpd to update only the directories that
+ * changed.
+ *
+ * One FileObserver is set on each directory of the tree. Changed directories
+ * are collected and flushed once no event came during DEBOUNCE_DELAY (or
+ * after MAX_DELAY), then sent as "update <path>" commands to the local mpd.
+ * Updates are sent at most every MIN_UPDATE_INTERVAL, and too many pending
+ * directories are coalesced into their common parent.
+ */
+public class MusicWatcher {
+    private static final String TAG = "MusicWatcher";
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+    private static final int EVENT_MASK = 0xfff;
+    private static final int MAX_WATCHES = 4096;
+    private static final int MAX_PENDING_PATHS = 16;
+    private static final long DEBOUNCE_DELAY = 3000; // in ms
+    private static final long MAX_DELAY = 30000; // in ms
+    private static final long MIN_UPDATE_INTERVAL = 10000; // in ms
+
+    private static final int MSG_WATCH = 0;
+    private static final int MSG_UNWATCH = 1;
+    private static final int MSG_CHANGED = 2;
+    private static final int MSG_FLUSH = 3;
+
+    private final String mRoot;
+    private final int mPort;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /* accessed only from mThread */
+    private final Map<String, DirObserver> mObservers = new HashMap<String, DirObserver>();
+    private final TreeSet<String> mPending = new TreeSet<String>();
+    private long mFirstPendingTime = 0;
+    private long mLastUpdateTime = -MIN_UPDATE_INTERVAL;
+    private MPDClient mClient = null;
+
+    private class DirObserver extends FileObserver {
+        private final String mPath;
+
+        public DirObserver(String path) {
+            super(path, EVENTS);
+            mPath = path;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            // called from the FileObserver thread
+            event &= EVENT_MASK;
+            if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                mHandler.obtainMessage(MSG_UNWATCH, mPath).sendToTarget();
+                return;
+            }
+            if (name == null)
+                return;
+            if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0)
+                mHandler.obtainMessage(MSG_WATCH, mPath + "/" + name).sendToTarget();
+            mHandler.obtainMessage(MSG_CHANGED, mPath).sendToTarget();
+        }
+    }
+
+    public MusicWatcher(String musicDirectory, int port) {
+        mRoot = new File(musicDirectory).getAbsolutePath();
+        mPort = port;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_WATCH:
+                        watch(new File((String) msg.obj));
+                        break;
+                    case MSG_UNWATCH:
+                        unwatch((String) msg.obj);
+                        break;
+                    case MSG_CHANGED:
+                        onChanged((String) msg.obj);
+                        break;
+                    case MSG_FLUSH:
+                        flush();
+                        break;
+                }
+            }
+        };
+    }
+
+    public void start() {
+        mHandler.obtainMessage(MSG_WATCH, mRoot).sendToTarget();
+    }
+
+    public void stop() {
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DirObserver observer : mObservers.values())
+                    observer.stopWatching();
+                mObservers.clear();
+                mPending.clear();
+                if (mClient != null)
+                    mClient.close();
+                mThread.quit();
+            }
+        });
+    }
+
+    private void watch(File dir) {
+        if (!dir.isDirectory())
+            return;
+        final String path = dir.getAbsolutePath();
+        if (mObservers.containsKey(path))
+            return;
+        if (mObservers.size() >= MAX_WATCHES) {
+            Log.w(TAG, "too many directories, not watching " + path);
+            return;
+        }
+
+        DirObserver observer = new DirObserver(path);
+        observer.startWatching();
+        mObservers.put(path, observer);
+
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory() && !child.getName().startsWith("."))
+                    watch(child);
+            }
+        }
+    }
+
+    private void unwatch(String path) {
+        Iterator<Map.Entry<String, DirObserver>> it = mObservers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, DirObserver> entry = it.next();
+            if (entry.getKey().equals(path) || entry.getKey().startsWith(path + "/")) {
+                entry.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Return the path relative to the music directory, "" for the root.
+     */
+    private String relativePath(String path) {
+        if (path.length() <= mRoot.length())
+            return "";
+        return path.substring(mRoot.length() + 1);
+    }
+
+    private void onChanged(String dir) {
+        final long now = SystemClock.elapsedRealtime();
+        if (mPending.isEmpty())
+            mFirstPendingTime = now;
+        mPending.add(relativePath(dir));
+
+        mHandler.removeMessages(MSG_FLUSH);
+        if (now - mFirstPendingTime >= MAX_DELAY)
+            mHandler.sendEmptyMessage(MSG_FLUSH);
+        else
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, DEBOUNCE_DELAY);
+    }
+
+    private static boolean isParent(String parent, String path) {
+        return parent.length() == 0 || path.startsWith(parent + "/");
+    }
+
+    private static String commonParent(String a, String b) {
+        while (a.length() > 0 && !b.equals(a) && !isParent(a, b)) {
+            int idx = a.lastIndexOf('/');
+            a = idx > 0 ? a.substring(0, idx) : "";
+        }
+        return a;
+    }
+
+    /*
+     * Remove paths that are updated by a pending parent, then coalesce into
+     * the common parent if there are still too many paths.
+     */
+    private List<String> coalesce() {
+        List<String> paths = new ArrayList<String>();
+        for (String path : mPending) {
+            // sorted: a parent comes before its children
+            boolean hasParent = false;
+            for (String parent : paths) {
+                if (isParent(parent, path)) {
+                    hasParent = true;
+                    break;
+                }
+            }
+            if (!hasParent)
+                paths.add(path);
+        }
+        if (paths.size() > MAX_PENDING_PATHS) {
+            String parent = paths.get(0);
+            for (String path : paths)
+                parent = commonParent(parent, path);
+            paths.clear();
+            paths.add(parent);
+        }
+        return paths;
+    }
+
+    private void flush() {
+        if (mPending.isEmpty())
+            return;
+
+        final long now = SystemClock.elapsedRealtime();
+        final long nextUpdateTime = mLastUpdateTime + MIN_UPDATE_INTERVAL;
+        if (now < nextUpdateTime) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, nextUpdateTime - now);
+            return;
+        }
+
+        List<String> paths = coalesce();
+        try {
+            if (mClient == null)
+                mClient = new MPDClient(mPort);
+            mClient.connect();
+            for (String path : paths) {
+                Log.d(TAG, "update: \"" + path + "\"");
+                try {
+                    mClient.command(path.length() == 0 ? "update" : "update " + MPDClient.quote(path));
+                } catch (MPDClient.MPDException e) {
+                    Log.w(TAG, "update \"" + path + "\": " + e.getMessage());
+                }
+            }
+            mPending.clear();
+        } catch (IOException e) {
+            // mpd busy or restarting: retry later
+            Log.w(TAG, "update failed: " + e);
+        }
+        /*
+         * don't keep the connection between updates: it would be counted as
+         * a client keeping the service awake
+         */
+        mClient.close();
+        mLastUpdateTime = now;
+        if (!mPending.isEmpty())
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, MIN_UPDATE_INTERVAL);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Cache of the addresses mpd can listen on.
+ *
+ * The network interfaces are enumerated once, then again on each
+ * connectivity change, from a background thread of the service process.
+ * Loopback, link-local and multicast addresses are not listed. An address is
+ * "local" if its interface is not a VPN tunnel or a mobile data link, see
+ * MPDConf.BIND_NETWORK.
+ */
+public class NetworkAddresses {
+    private static final String TAG = "NetworkAddresses";
+
+    /* name prefixes of the mobile data interfaces */
+    private static final String sMobilePrefixes[] = new String[] {
+        "rmnet",
+        "rev_rmnet",
+        "ccmni",
+        "pdp",
+        "ppp",
+        "v4-rmnet",
+    };
+
+    public interface Listener {
+        /**
+         * Called from the NetworkAddresses thread when the addresses changed.
+         */
+        public void onAddressesChanged();
+    }
+
+    private static class Snapshot {
+        final List<String> all;
+        final List<String> local;
+
+        Snapshot(List<String> all, List<String> local) {
+            this.all = Collections.unmodifiableList(all);
+            this.local = Collections.unmodifiableList(local);
+        }
+    }
+
+    private static volatile Snapshot sSnapshot = null;
+
+    private final Context mContext;
+    private final Listener mListener;
+    private HandlerThread mThread = null;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // called from mThread, CONNECTIVITY_ACTION is sticky: the first
+            // call comes right after the registration
+            refresh();
+        }
+    };
+
+    public NetworkAddresses(Context ctx, Listener listener) {
+        mContext = ctx;
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mThread != null)
+            return;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION),
+                null, new Handler(mThread.getLooper()));
+    }
+
+    public void stop() {
+        if (mThread == null)
+            return;
+        mContext.unregisterReceiver(mReceiver);
+        mThread.quit();
+        mThread = null;
+    }
+
+    private void refresh() {
+        final Snapshot old = sSnapshot;
+        final Snapshot snapshot = scan();
+        sSnapshot = snapshot;
+        if (old == null || !old.all.equals(snapshot.all) || !old.local.equals(snapshot.local)) {
+            Log.d(TAG, "addresses: " + snapshot.all + ", local: " + snapshot.local);
+            if (mListener != null)
+                mListener.onAddressesChanged();
+        }
+    }
+
+    private static boolean isMobile(String name) {
+        for (String prefix : sMobilePrefixes) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static Snapshot scan() {
+        List<String> all4 = new ArrayList<String>(), all6 = new ArrayList<String>();
+        List<String> local4 = new ArrayList<String>(), local6 = new ArrayList<String>();
+
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface intf = interfaces.nextElement();
+                if (!intf.isUp() || intf.isLoopback())
+                    continue;
+                final boolean local = !intf.isPointToPoint() && !isMobile(intf.getName());
+
+                Enumeration<InetAddress> addresses = intf.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address.isLoopbackAddress() || address.isLinkLocalAddress()
+                            || address.isMulticastAddress())
+                        continue;
+                    String host = address.getHostAddress();
+                    final int scope = host.indexOf('%');
+                    if (scope >= 0)
+                        host = host.substring(0, scope);
+                    final boolean ipv6 = address instanceof Inet6Address;
+                    (ipv6 ? all6 : all4).add(host);
+                    if (local)
+                        (ipv6 ? local6 : local4).add(host);
+                }
+            }
+        } catch (SocketException e) {
+            Log.e(TAG, "can't list the network interfaces: " + e);
+        }
+        // IPv4 first, these are the ones users type
+        all4.addAll(all6);
+        local4.addAll(local6);
+        return new Snapshot(all4, local4);
+    }
+
+    private static Snapshot getSnapshot() {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            // not started yet: enumerate from the calling thread
+            snapshot = scan();
+            sSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return the addresses of all the network interfaces.
+     */
+    public static List<String> getAll() {
+        return getSnapshot().all;
+    }
+
+    /**
+     * Return the addresses of the interfaces that are not VPN tunnels or
+     * mobile data links.
+     */
+    public static List<String> getLocal() {
+        return getSnapshot().local;
+    }
+
+    /**
+     * Return "host:port", with brackets around IPv6 hosts.
+     */
+    public static String format(String host, String port) {
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the player, built from the responses of the status
+ * and currentsong commands.
+ */
+public class PlayerState {
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_STOP = 1;
+    public static final int STATE_PLAY = 2;
+    public static final int STATE_PAUSE = 3;
+
+    /**
+     * State before the first response of mpd.
+     */
+    public static final PlayerState UNKNOWN = new PlayerState();
+
+    /**
+     * Immutable current song, from the response of currentsong.
+     */
+    public static class Song {
+        public static final Song NONE = new Song(new HashMap<String, String>());
+
+        public final String file;
+        public final String artist;
+        public final String album;
+        public final String title;
+        public final String name;
+
+        Song(Map<String, String> tags) {
+            file = tags.get("file");
+            artist = tags.get("Artist");
+            album = tags.get("Album");
+            title = tags.get("Title");
+            name = tags.get("Name");
+        }
+
+        /**
+         * Return a short description of the song, for a notification.
+         */
+        public String getDisplayName() {
+            if (title != null)
+                return artist != null ? artist + " - " + title : title;
+            if (name != null)
+                return name;
+            if (file != null)
+                return file.substring(file.lastIndexOf('/') + 1);
+            return null;
+        }
+    }
+
+    public final int state;
+    public final int volume; // -1 if there is no mixer
+    public final boolean repeat;
+    public final boolean random;
+    public final long playlistVersion;
+    public final int playlistLength;
+    public final int songPos; // -1 if there is no current song
+    public final int songId;
+    public final long elapsedMs;
+    public final long durationMs;
+    public final int bitrate; // in kbps
+    public final Song song;
+    public final long time; // elapsedRealtime of the snapshot, in ms
+
+    private PlayerState() {
+        state = STATE_UNKNOWN;
+        volume = -1;
+        repeat = false;
+        random = false;
+        playlistVersion = -1;
+        playlistLength = 0;
+        songPos = -1;
+        songId = -1;
+        elapsedMs = 0;
+        durationMs = 0;
+        bitrate = 0;
+        song = Song.NONE;
+        time = 0;
+    }
+
+    PlayerState(Map<String, String> status, Song song, long time) {
+        final String state = status.get("state");
+        if ("play".equals(state))
+            this.state = STATE_PLAY;
+        else if ("pause".equals(state))
+            this.state = STATE_PAUSE;
+        else if ("stop".equals(state))
+            this.state = STATE_STOP;
+        else
+            this.state = STATE_UNKNOWN;
+        volume = parseInt(status.get("volume"), -1);
+        repeat = parseInt(status.get("repeat"), 0) != 0;
+        random = parseInt(status.get("random"), 0) != 0;
+        playlistVersion = parseLong(status.get("playlist"), -1);
+        playlistLength = parseInt(status.get("playlistlength"), 0);
+        songPos = parseInt(status.get("song"), -1);
+        songId = parseInt(status.get("songid"), -1);
+        bitrate = parseInt(status.get("bitrate"), 0);
+
+        /* "time: elapsed:duration" in s, "elapsed" in s with ms precision */
+        long elapsed = 0, duration = 0;
+        final String times = status.get("time");
+        if (times != null) {
+            final int idx = times.indexOf(':');
+            if (idx > 0) {
+                elapsed = parseLong(times.substring(0, idx), 0) * 1000;
+                duration = parseLong(times.substring(idx + 1), 0) * 1000;
+            }
+        }
+        final String elapsedPrecise = status.get("elapsed");
+        if (elapsedPrecise != null) {
+            try {
+                elapsed = (long) (Double.parseDouble(elapsedPrecise) * 1000);
+            } catch (NumberFormatException e) {
+            }
+        }
+        elapsedMs = elapsed;
+        durationMs = duration;
+        this.song = songId != -1 ? song : Song.NONE;
+        this.time = time;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse "key: value" response lines, the first value of a key wins.
+     */
+    static Map<String, String> parse(List<String> lines) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (String line : lines) {
+            final int idx = line.indexOf(": ");
+            if (idx > 0) {
+                final String key = line.substring(0, idx);
+                if (!map.containsKey(key))
+                    map.put(key, line.substring(idx + 2));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Return the elapsed time at now (elapsedRealtime, in ms), extrapolated
+     * while playing.
+     */
+    public long getElapsed(long now) {
+        if (state != STATE_PLAY)
+            return elapsedMs;
+        long elapsed = elapsedMs + now - time;
+        return durationMs > 0 ? Math.min(elapsed, durationMs) : elapsed;
+    }
+
+    public boolean isPlaying() {
+        return state == STATE_PLAY;
+    }
+}
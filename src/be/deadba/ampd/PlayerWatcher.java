@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Follow the player of the local mpd with one idle connection.
+ *
+ * The last PlayerState is kept in an AtomicReference, so that it can be read
+ * from any thread without a connection to mpd. The connection waits in idle
+ * and only the commands of the subsystems reported as changed are sent
+ * again: status for player, mixer, options and playlist changes, currentsong
+ * for player and playlist changes.
+ */
+public class PlayerWatcher {
+    private static final String TAG = "PlayerWatcher";
+    private static final String IDLE = "idle player mixer options playlist";
+    private static final int READ_TIMEOUT = 10000; // in ms
+    private static final long MIN_RETRY_DELAY = 500; // in ms
+    private static final long MAX_RETRY_DELAY = 10000; // in ms
+
+    public interface Listener {
+        /**
+         * Called from the watcher thread when the snapshot changed.
+         */
+        public void onPlayerStateChanged(PlayerState state);
+    }
+
+    private final MPDClient mClient;
+    private final Listener mListener;
+    private final AtomicReference<PlayerState> mState =
+            new AtomicReference<PlayerState>(PlayerState.UNKNOWN);
+    private final Thread mThread;
+    private volatile boolean mStop = false;
+
+    public PlayerWatcher(int port, Listener listener) {
+        mClient = new MPDClient(port);
+        mListener = listener;
+        mThread = new Thread(TAG) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                PlayerWatcher.this.run();
+            }
+        };
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    public void stop() {
+        mStop = true;
+        // unblock idle
+        mClient.close();
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * Return the last snapshot of the player, PlayerState.UNKNOWN if mpd
+     * wasn't reached yet.
+     */
+    public PlayerState getState() {
+        return mState.get();
+    }
+
+    private void publish(PlayerState state) {
+        mState.set(state);
+        if (mListener != null)
+            mListener.onPlayerStateChanged(state);
+    }
+
+    /*
+     * Fetch the status, and the current song if needed, into a new snapshot.
+     */
+    private PlayerState fetch(PlayerState previous, boolean fetchSong) throws IOException {
+        mClient.setTimeout(READ_TIMEOUT);
+        final long time = SystemClock.elapsedRealtime();
+        List<String> status = mClient.command("status");
+        PlayerState.Song song = previous.song;
+        if (fetchSong || song == PlayerState.Song.NONE)
+            song = new PlayerState.Song(PlayerState.parse(mClient.command("currentsong")));
+        return new PlayerState(PlayerState.parse(status), song, time);
+    }
+
+    private void follow() throws IOException {
+        mClient.connect();
+        PlayerState state = fetch(PlayerState.UNKNOWN, true);
+        publish(state);
+
+        while (!mStop) {
+            mClient.setTimeout(0);
+            boolean statusChanged = false, songChanged = false;
+            for (String line : mClient.command(IDLE)) {
+                if (!line.startsWith("changed: "))
+                    continue;
+                final String subsystem = line.substring(9);
+                statusChanged = true;
+                if (subsystem.equals("player") || subsystem.equals("playlist"))
+                    songChanged = true;
+            }
+            if (statusChanged) {
+                state = fetch(state, songChanged);
+                publish(state);
+            }
+        }
+    }
+
+    private void run() {
+        long retryDelay = MIN_RETRY_DELAY;
+
+        while (!mStop) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (mStop)
+                    break;
+                Log.d(TAG, "connection lost: " + e);
+                if (mState.get() != PlayerState.UNKNOWN) {
+                    retryDelay = MIN_RETRY_DELAY;
+                    publish(PlayerState.UNKNOWN);
+                }
+            }
+            mClient.close();
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+        mClient.close();
+    }
+}
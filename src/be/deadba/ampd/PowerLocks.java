@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Wakelock and WiFi lock of the service, held only while mpd is busy.
+ *
+ * The service calls update() when the player state or the number of
+ * clients changes. The locks are acquired as soon as mpd becomes active and
+ * released once it stayed inactive during the grace period, so that a pause
+ * or a track change doesn't cycle them. The WiFi lock keeps the radio out of
+ * power save, which otherwise delays the packets of the clients and of the
+ * http streams played by mpd.
+ */
+public class PowerLocks {
+    private static final String TAG = "PowerLocks";
+
+    private final PowerManager.WakeLock mWakeLock;
+    private final WifiManager.WifiLock mWifiLock;
+    private final Handler mHandler;
+
+    private boolean mEnabled = false;
+    private long mGracePeriod = 0; // in ms
+    private boolean mActive = false;
+    private boolean mHeld = false;
+    private boolean mReleasePending = false;
+
+    /* statistics, see fillStats() */
+    private long mAcquireTime = 0;
+    private long mHeldTime = 0;
+    private int mAcquires = 0;
+
+    private final Runnable mRelease = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PowerLocks.this) {
+                mReleasePending = false;
+                if (!mActive)
+                    release();
+            }
+        }
+    };
+
+    /**
+     * @param handler handler used to release the locks after the grace
+     * period
+     */
+    public PowerLocks(Context ctx, Handler handler) {
+        mHandler = handler;
+
+        PowerManager pm = (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+
+        WifiManager wm = (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
+        if (wm != null) {
+            mWifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG);
+            mWifiLock.setReferenceCounted(false);
+        } else {
+            mWifiLock = null;
+        }
+    }
+
+    /**
+     * @param enabled if false, the locks are never acquired
+     * @param gracePeriod time to wait before releasing the locks once mpd is
+     * inactive, in ms
+     */
+    public synchronized void configure(boolean enabled, long gracePeriod) {
+        mEnabled = enabled;
+        mGracePeriod = gracePeriod;
+        if (mEnabled)
+            update(mActive);
+        else
+            release();
+    }
+
+    /**
+     * @param active true if mpd is playing or serving clients
+     */
+    public synchronized void update(boolean active) {
+        mActive = active;
+        if (!mEnabled)
+            return;
+
+        if (active) {
+            if (mReleasePending) {
+                mHandler.removeCallbacks(mRelease);
+                mReleasePending = false;
+            }
+            acquire();
+        } else if (mHeld && !mReleasePending) {
+            if (mGracePeriod > 0) {
+                mHandler.postDelayed(mRelease, mGracePeriod);
+                mReleasePending = true;
+            } else {
+                release();
+            }
+        }
+    }
+
+    private void acquire() {
+        if (mHeld)
+            return;
+        mWakeLock.acquire();
+        if (mWifiLock != null)
+            mWifiLock.acquire();
+        mHeld = true;
+        mAcquireTime = SystemClock.elapsedRealtime();
+        mAcquires++;
+        Log.d(TAG, "locks acquired");
+    }
+
+    /**
+     * Release the locks now, whatever the state of mpd.
+     */
+    public synchronized void release() {
+        if (mReleasePending) {
+            mHandler.removeCallbacks(mRelease);
+            mReleasePending = false;
+        }
+        if (!mHeld)
+            return;
+        mWakeLock.release();
+        if (mWifiLock != null)
+            mWifiLock.release();
+        mHeld = false;
+        mHeldTime += SystemClock.elapsedRealtime() - mAcquireTime;
+        Log.d(TAG, "locks released");
+    }
+
+    public synchronized void fillStats(MPDStats stats) {
+        stats.lockHeldMs = mHeldTime + (mHeld ? SystemClock.elapsedRealtime() - mAcquireTime : 0);
+        stats.lockAcquires = mAcquires;
+    }
+}
@@ -41,16 +41,15 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.preference.TwoStatePreference;
+import android.text.TextUtils;
 
 import android.util.Log;
 
 import java.io.File;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-
-import org.apache.http.conn.util.InetAddressUtils;
+import java.util.Map;
 
 /**
  * A {@link PreferenceActivity} that presents a set of application settings. On
@@ -79,28 +78,41 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
     private TwoStatePreference mRunPreference = null;
     private TwoStatePreference mRunOnBootPreference = null;
 
-    private boolean mRestart= false;
     private boolean mRunning = false;
     private boolean mRun = false;
     private boolean mRunOnBoot = false;
     private boolean mDirValid = false;
     private boolean mPortValid = false;
-    private String mAddress = null;
-    private String mPort = null;
+    private String mAddresses = null;
 
     /*
-     * The machine state is quite complicated.
-     * We can't really restart properly MPD,
-     * so the impd.stop() call will kill the service itself,
-     * the process will be restarted and this activity will be connected again.
+     * Preferences that depend on the LibMPD.CAP_* of the service, they are
+     * left as they are until the service tells what its libmpd supports.
      */
-    private final int KILL_TIMEOUT = 2000; // in ms
+    private static final String sCapabilityKeys[] = new String[] {
+        "mpd_resampler",
+        "mpd_output",
+        "mpd_buffer_time",
+        "mpd_httpd_encoder",
+        "mpd_httpd_bitrate",
+        "mpd_db_format",
+        "mpd_hw_decoder",
+    };
+    private final Map<String, Preference> mCapabilityPreferences = new HashMap<String, Preference>();
+    private int mCapabilities = -1; // unknown
 
+    /*
+     * A settings change reloads the MPD configuration inside the service
+     * process (see IMPDService.reload()), the service stays connected. mpd
+     * is only restarted if a structural setting changed (see
+     * MPDConf.reload()), the mixer and the outputs are structural.
+     */
     private final int MSG_ON_CONNECTED = 0;
     private final int MSG_ON_DISCONNECTED = 1;
     private final int MSG_ON_START = 2;
     private final int MSG_ON_STOP = 3;
-    private final int MSG_KILL_TIMEOUT = 4;
+    private final int MSG_ON_ADDRESSES = 4;
+    private final int MSG_ON_CAPABILITIES = 5;
 
     private final Handler mHandler = new Handler() {
         @Override
@@ -109,15 +121,12 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
                 case MSG_ON_CONNECTED: {
                     IMPDService impd = getService();
                     try {
-                        if (impd.isRunning()) {
+                        if (impd.isRunning())
                             mRunning = mRun = true;
-                        } else if (mRestart) {
-                            mRun = true;
-                            mRestart = false;
-                        }
                     } catch (RemoteException e) {
                     }
-                    mAddress = getLocalIpAddress();
+                    updateAddresses();
+                    updateCapabilities();
                     onMPDStatePreferenceChange(false);
                     break;
                 }
@@ -129,6 +138,8 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
                 }
                 case MSG_ON_START: {
                     mRunning = true;
+                    updateAddresses();
+                    updateCapabilities();
                     onMPDStatePreferenceChange(false);
                     break;
                 }
@@ -136,22 +147,15 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
                     mRunning = false;
                     mRun = false;
                     onMPDStatePreferenceChange(false);
-                    IMPDService impd = getService();
-                    try {
-                        if (impd != null)
-                            impd.kill();
-                    } catch (RemoteException e) {
-                    }
                     break;
                 }
-                case MSG_KILL_TIMEOUT: {
-                    Log.d(TAG, "timeout ! killing service");
-                    IMPDService impd = getService();
-                    try {
-                        if (impd != null)
-                            impd.kill();
-                    } catch (RemoteException e) {
-                    }
+                case MSG_ON_ADDRESSES: {
+                    updateAddresses();
+                    onMPDStatePreferenceChange(false);
+                    break;
+                }
+                case MSG_ON_CAPABILITIES: {
+                    setCapabilities(msg.arg1);
                     break;
                 }
             }
@@ -159,17 +163,34 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
     };
     private IMPDServiceCallback mIMPDServiceCallback = new IMPDServiceCallback.Stub() {
         @Override
-        public void onStart() throws RemoteException {
-            Log.d(TAG, "onStart");
-            mHandler.removeCallbacksAndMessages(null);
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_START));
-        }
-
-        @Override
-        public void onStop(boolean error) throws RemoteException {
-            Log.d(TAG, "onStop");
-            mHandler.removeCallbacksAndMessages(null);
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_STOP));
+        public void onEvents(int[] types, long[] args) throws RemoteException {
+            for (int i = 0; i < types.length; ++i) {
+                switch (types[i]) {
+                    case CallbackDispatcher.EVENT_START:
+                        Log.d(TAG, "onStart");
+                        mHandler.removeCallbacksAndMessages(null);
+                        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_START));
+                        break;
+                    case CallbackDispatcher.EVENT_PHASE:
+                        Log.d(TAG, "onPhase: " + LibMPD.getPhaseName((int) args[i]));
+                        break;
+                    case CallbackDispatcher.EVENT_STOP:
+                        Log.d(TAG, "onStop");
+                        mHandler.removeCallbacksAndMessages(null);
+                        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_STOP));
+                        break;
+                    case CallbackDispatcher.EVENT_ADDRESSES:
+                        Log.d(TAG, "onAddresses");
+                        mHandler.removeMessages(MSG_ON_ADDRESSES);
+                        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_ADDRESSES));
+                        break;
+                    case CallbackDispatcher.EVENT_CAPABILITIES:
+                        Log.d(TAG, "onCapabilities: " + args[i]);
+                        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_CAPABILITIES,
+                                (int) args[i], 0));
+                        break;
+                }
+            }
         }
     };
 
@@ -252,15 +273,39 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
         // Add 'general' preferences.
         addPreferencesFromResource(R.xml.pref_general);
         setupDefaultDirectoryPreference(findPreference("mpd_music_directory"), getPreferenceScreen());
+        findPreference("mpd_big_cores").setEnabled(CpuFeatures.isBigLittle());
+        findPreference("mpd_hw_decoder").setEnabled(MediaCodecDecoder.isSupported());
 
         // Bind the summaries of EditText/List/Dialog/Ringtone preferences to
         // their values. When their values change, their summaries are updated
         // to reflect the new value, per the Android Design guidelines.
         bindPreferenceSummaryToValue(findPreference("mpd_port"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_bind"), this);
         bindPreferenceSummaryToValue(findPreference("mpd_music_directory"), this);
         bindPreferenceSummaryToValue(findPreference("mpd_output"), this);
         bindPreferenceSummaryToValue(findPreference("mpd_mixer"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_replaygain"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_httpd"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_httpd_port"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_httpd_encoder"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_httpd_bitrate"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_httpd_max_clients"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_buffer_size"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_buffer_before_play"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_buffer_time"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_resampler"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_hw_decoder"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_thread_priority"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_big_cores"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_watch"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_db_cache_size"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_db_format"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_sticker_wal"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_sticker_sync"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_sticker_cache_size"), this);
+        bindPreferenceSummaryToValue(findPreference("mpd_log_level"), this);
         bindPreferenceSummaryToValue(findPreference("wakelock"), this);
+        bindPreferenceSummaryToValue(findPreference("wakelock_grace_period"), this);
         bindPreferenceSummaryToValue(findPreference("run"), this);
         bindPreferenceSummaryToValue(findPreference("run_on_boot"), this);
     }
@@ -302,25 +347,119 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
         }
     }
 
-    private static String getLocalIpAddress(){
+    /*
+     * The addresses are cached by the service, it doesn't enumerate the
+     * network interfaces on each call.
+     */
+    private void updateAddresses() {
+        IMPDService impd = getService();
+        mAddresses = null;
+        if (impd == null)
+            return;
         try {
-            for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements();) {
-                NetworkInterface intf = en.nextElement();
-                for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr.hasMoreElements();) {
-                    InetAddress inetAddress = enumIpAddr.nextElement();
-                    String hostAddress = inetAddress.getHostAddress();
-                    if (!inetAddress.isLoopbackAddress() && InetAddressUtils.isIPv4Address(hostAddress)) {
-                        return hostAddress;
-                    }
-                }
+            List<String> addresses = impd.getAddresses();
+            if (addresses != null && !addresses.isEmpty())
+                mAddresses = TextUtils.join(", ", addresses);
+        } catch (RemoteException e) {
+        }
+    }
+
+    /*
+     * The service doesn't load libmpd to answer: the capabilities stay
+     * unknown (-1) until it is loaded, and are then sent with
+     * EVENT_CAPABILITIES.
+     */
+    private void updateCapabilities() {
+        IMPDService impd = getService();
+        if (impd == null)
+            return;
+        try {
+            setCapabilities(impd.getCapabilities());
+        } catch (RemoteException e) {
+        }
+    }
+
+    /*
+     * Unknown capabilities leave the preferences as they are: the stored
+     * choices are only changed once libmpd is known not to support them.
+     */
+    private void setCapabilities(int capabilities) {
+        if (capabilities < 0 || capabilities == mCapabilities)
+            return;
+        mCapabilities = capabilities;
+        for (Preference preference : mCapabilityPreferences.values())
+            applyCapabilities(preference);
+    }
+
+    private boolean hasCapability(int capability) {
+        return (mCapabilities & capability) != 0;
+    }
+
+    /*
+     * Set the entries of a list preference from its arrays, without the
+     * excluded values. A current value that is excluded is replaced by
+     * fallback.
+     */
+    private void setListEntries(ListPreference preference, int entriesId, int valuesId,
+            List<String> excluded, String fallback) {
+        String[] entries = getResources().getStringArray(entriesId);
+        String[] values = getResources().getStringArray(valuesId);
+        List<String> keptEntries = new ArrayList<String>();
+        List<String> keptValues = new ArrayList<String>();
+
+        for (int i = 0; i < values.length; ++i) {
+            if (!excluded.contains(values[i])) {
+                keptEntries.add(entries[i]);
+                keptValues.add(values[i]);
             }
-        } catch (Exception ex) {
-               Log.e(TAG, ex.toString());
         }
-        return null;
+        preference.setEntries(keptEntries.toArray(new String[keptEntries.size()]));
+        preference.setEntryValues(keptValues.toArray(new String[keptValues.size()]));
+        if (excluded.contains(preference.getValue())) {
+            preference.setValue(fallback);
+            onPreferenceChange(preference, fallback);
+        }
     }
 
-    private boolean onMPDStatePreferenceChange(boolean restart) {
+    /*
+     * Disable the preferences, or the entries of list preferences, that
+     * libmpd doesn't support: MPDConf doesn't generate them either.
+     */
+    private void applyCapabilities(Preference preference) {
+        if (mCapabilities < 0)
+            return;
+        String key = preference.getKey();
+        if (key.equals("mpd_resampler")) {
+            preference.setEnabled(hasCapability(LibMPD.CAP_SAMPLERATE));
+        } else if (key.equals("mpd_output")) {
+            List<String> excluded = new ArrayList<String>();
+            if (!hasCapability(LibMPD.CAP_JNI_OUTPUT))
+                excluded.add("jni");
+            setListEntries((ListPreference) preference, R.array.entries_mpd_output,
+                    R.array.entryvalues_mpd_output, excluded, "audiotrack");
+        } else if (key.equals("mpd_buffer_time")) {
+            /* only read by the jni output */
+            preference.setEnabled(hasCapability(LibMPD.CAP_JNI_OUTPUT));
+        } else if (key.equals("mpd_httpd_encoder")) {
+            List<String> excluded = new ArrayList<String>();
+            if (!hasCapability(LibMPD.CAP_VORBIS_ENCODER))
+                excluded.add("vorbis");
+            if (!hasCapability(LibMPD.CAP_LAME_ENCODER))
+                excluded.add("lame");
+            setListEntries((ListPreference) preference, R.array.entries_mpd_httpd_encoder,
+                    R.array.entryvalues_mpd_httpd_encoder, excluded, "wave");
+        } else if (key.equals("mpd_db_format")) {
+            preference.setEnabled(hasCapability(LibMPD.CAP_COMPRESSED_DB));
+        } else if (key.equals("mpd_hw_decoder")) {
+            preference.setEnabled(hasCapability(LibMPD.CAP_MEDIACODEC));
+        } else if (key.equals("mpd_httpd_bitrate")) {
+            /* wave has no bitrate */
+            preference.setEnabled(hasCapability(LibMPD.CAP_VORBIS_ENCODER)
+                    || hasCapability(LibMPD.CAP_LAME_ENCODER));
+        }
+    }
+
+    private boolean onMPDStatePreferenceChange(boolean reload) {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
 
         IMPDService impd;
@@ -333,11 +472,10 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
             mRun = mRunOnBoot = false;
         try {
             if (mRunning) {
-                if (!mRun || restart) {
+                if (!mRun)
                     impd.stop();
-                    mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_KILL_TIMEOUT), KILL_TIMEOUT);
-                    mRestart = restart;
-                }
+                else if (reload)
+                    impd.reload();
             } else {
                 if (mRun)
                     impd.start();
@@ -368,10 +506,10 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
 
             if (mRun) {
                 mRunPreference.setChecked(true);
-                if (mAddress == null)
+                if (mAddresses == null)
                     mRunPreference.setSummary(R.string.mpd_state_running);
                 else
-                    mRunPreference.setSummary(getString(R.string.mpd_state_running_ip, mAddress+":"+mPort));
+                    mRunPreference.setSummary(getString(R.string.mpd_state_running_ip, mAddresses));
             } else {
                 mRunPreference.setChecked(false);
                 mRunPreference.setSummary(R.string.mpd_state_notrunning);
@@ -399,6 +537,12 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
                 editor.putString(key, (String)value);
             editor.commit();
         }
+        for (String capabilityKey : sCapabilityKeys) {
+            if (key.equals(capabilityKey) && mCapabilityPreferences.get(key) != preference) {
+                mCapabilityPreferences.put(key, preference);
+                applyCapabilities(preference);
+            }
+        }
         if (key.equals("run")) {
             mRunPreference = (TwoStatePreference) preference;
             mRun = stringValue.equals("true");
@@ -414,6 +558,8 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
         } else if (key.equals("wakelock")) {
             onMPDStatePreferenceChange(true);
             return true;
+        } else if (key.equals("wakelock_grace_period")) {
+            onMPDStatePreferenceChange(true);
         } else if (key.equals("mpd_music_directory")) {
             File file = new File(stringValue);
             mDirValid = file.exists() && file.isDirectory() && file.canRead() && file.canExecute();
@@ -425,14 +571,39 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
             } catch (NumberFormatException e) {
             }
             mPortValid = port >= 1024 && port <= 65535;
-            if (mPortValid)
-                mPort = String.valueOf(port);
             onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_bind")) {
+            onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_thread_priority") || key.equals("mpd_big_cores")) {
+            onMPDStatePreferenceChange(true);
+            return true;
         } else if (key.equals("mpd_mixer")) {
             onMPDStatePreferenceChange(true);
             return true;
+        } else if (key.equals("mpd_watch")) {
+            onMPDStatePreferenceChange(true);
+            return true;
         } else if (key.equals("mpd_output")) {
             onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_resampler") || key.equals("mpd_hw_decoder")) {
+            onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_replaygain")) {
+            onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_httpd")) {
+            onMPDStatePreferenceChange(true);
+            return true;
+        } else if (key.startsWith("mpd_httpd_")) {
+            onMPDStatePreferenceChange(true);
+        } else if (key.startsWith("mpd_buffer_")) {
+            onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_db_cache_size") || key.equals("mpd_db_format")
+                || key.equals("mpd_log_level")) {
+            onMPDStatePreferenceChange(true);
+        } else if (key.equals("mpd_sticker_wal")) {
+            onMPDStatePreferenceChange(true);
+            return true;
+        } else if (key.startsWith("mpd_sticker_")) {
+            onMPDStatePreferenceChange(true);
         }
         if (preference instanceof ListPreference) {
             // For list preferences, look up the correct display value in
@@ -496,6 +667,8 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.pref_general);
             setupDefaultDirectoryPreference(findPreference("mpd_music_directory"), getPreferenceScreen());
+            findPreference("mpd_big_cores").setEnabled(CpuFeatures.isBigLittle());
+            findPreference("mpd_hw_decoder").setEnabled(MediaCodecDecoder.isSupported());
             SettingsActivity activity = (SettingsActivity) getActivity();
 
             // Bind the summaries of EditText/List/Dialog/Ringtone preferences
@@ -503,10 +676,32 @@ public class SettingsActivity extends PreferenceActivity implements ServiceConne
             // updated to reflect the new value, per the Android Design
             // guidelines.
             bindPreferenceSummaryToValue(findPreference("mpd_port"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_bind"), activity);
             bindPreferenceSummaryToValue(findPreference("mpd_music_directory"), activity);
             bindPreferenceSummaryToValue(findPreference("mpd_output"), activity);
             bindPreferenceSummaryToValue(findPreference("mpd_mixer"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_replaygain"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_httpd"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_httpd_port"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_httpd_encoder"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_httpd_bitrate"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_httpd_max_clients"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_buffer_size"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_buffer_before_play"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_buffer_time"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_resampler"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_hw_decoder"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_thread_priority"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_big_cores"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_watch"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_db_cache_size"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_db_format"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_sticker_wal"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_sticker_sync"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_sticker_cache_size"), activity);
+            bindPreferenceSummaryToValue(findPreference("mpd_log_level"), activity);
             bindPreferenceSummaryToValue(findPreference("wakelock"), activity);
+            bindPreferenceSummaryToValue(findPreference("wakelock_grace_period"), activity);
             bindPreferenceSummaryToValue(findPreference("run"), activity);
             bindPreferenceSummaryToValue(findPreference("run_on_boot"), activity);
         }
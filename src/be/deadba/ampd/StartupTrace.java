@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Records the startup phases of the mpd service process, from the boot
+ * broadcast (or the first service start) until mpd accepts connections.
+ *
+ * Timestamps are taken from the monotonic clock since boot. A session is
+ * closed by {@link #finish(Context, String)}: its events are then appended to a trace
+ * file that keeps only the last {@link #MAX_FILE_LINES} lines. Synchronous
+ * phases are also emitted as android.os.Trace sections (systrace).
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    private static final String TRACE_FILE = "startup_trace";
+    private static final int MAX_EVENTS = 64;
+    private static final int MAX_FILE_LINES = 512;
+
+    private static final String[] sNames = new String[MAX_EVENTS];
+    private static final long[] sBegins = new long[MAX_EVENTS];
+    private static final long[] sEnds = new long[MAX_EVENTS];
+    private static int sSeq = 0;
+    private static int sFirstSeq = 0;
+    private static boolean sFinished = false;
+    private static final Object sFileLock = new Object();
+
+    private StartupTrace() {
+    }
+
+    private static long now() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return SystemClock.elapsedRealtimeNanos() / 1000;
+        else
+            return SystemClock.elapsedRealtime() * 1000;
+    }
+
+    private static boolean hasTrace() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    private static synchronized int record(String name, boolean instant) {
+        if (sFinished) {
+            // previous session done: start a new one
+            sFirstSeq = sSeq;
+            sFinished = false;
+        }
+        final int seq = sSeq++;
+        final int idx = seq % MAX_EVENTS;
+        if (sSeq - sFirstSeq > MAX_EVENTS)
+            sFirstSeq = sSeq - MAX_EVENTS;
+
+        sNames[idx] = name;
+        sBegins[idx] = now();
+        sEnds[idx] = instant ? sBegins[idx] : -1;
+        return seq;
+    }
+
+    /**
+     * Record an instant event.
+     */
+    public static void mark(String name) {
+        record(name, true);
+    }
+
+    /**
+     * Begin a phase, must be ended by {@link #end(int)} from the same thread.
+     *
+     * @return a token to pass to {@link #end(int)}
+     */
+    public static int begin(String name) {
+        if (hasTrace())
+            Trace.beginSection(name);
+        return record(name, false);
+    }
+
+    public static void end(int token) {
+        synchronized (StartupTrace.class) {
+            if (token >= sFirstSeq && token < sSeq)
+                sEnds[token % MAX_EVENTS] = now();
+        }
+        if (hasTrace())
+            Trace.endSection();
+    }
+
+    private static String format(int seq) {
+        final int idx = seq % MAX_EVENTS;
+        final long end = sEnds[idx];
+        return sNames[idx] + " " + sBegins[idx] + " " + (end >= 0 ? end - sBegins[idx] : -1);
+    }
+
+    /**
+     * Return the events of the current (or last) session, one per line:
+     * "name begin_us duration_us". Timestamps are relative to the device boot,
+     * the duration is 0 for instant events and -1 for unfinished phases.
+     */
+    public static synchronized List<String> getEvents() {
+        List<String> events = new ArrayList<String>(sSeq - sFirstSeq);
+        for (int seq = sFirstSeq; seq < sSeq; ++seq)
+            events.add(format(seq));
+        return events;
+    }
+
+    /**
+     * Close the current session: record the final event and append the
+     * session to the trace file (from a background thread).
+     */
+    public static void finish(final Context ctx, String name) {
+        final List<String> events;
+
+        synchronized (StartupTrace.class) {
+            if (sFinished)
+                return;
+            record(name, true);
+            events = getEvents();
+            sFinished = true;
+        }
+        Log.d(TAG, "startup: " + events);
+
+        new Thread("StartupTrace") {
+            @Override
+            public void run() {
+                append(ctx, events);
+            }
+        }.start();
+    }
+
+    private static void append(Context ctx, List<String> events) {
+        synchronized (sFileLock) {
+            appendLocked(ctx, events);
+        }
+    }
+
+    private static void appendLocked(Context ctx, List<String> events) {
+        File file = ctx.getFileStreamPath(TRACE_FILE);
+        LinkedList<String> lines = new LinkedList<String>();
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = br.readLine()) != null)
+                lines.add(line);
+        } catch (IOException e) {
+        }
+        try {
+            if (br != null)
+                br.close();
+        } catch (IOException e) {
+        }
+
+        lines.add("# session");
+        lines.addAll(events);
+        while (lines.size() > MAX_FILE_LINES)
+            lines.removeFirst();
+
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+            sb.append(line).append('\n');
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            fos.write(sb.toString().getBytes());
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(file))
+                tmp.delete();
+        } catch (IOException e) {
+            Log.e(TAG, "can't write " + file + ": " + e);
+        }
+        try {
+            if (fos != null)
+                fos.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Fill MPDStats snapshots of the service process.
+ *
+ * The /proc stat files of the process and of its tasks are kept open and
+ * read again into the same buffer, the task list is only refreshed every
+ * TASK_REFRESH_INTERVAL: sampling doesn't allocate, so that it can be polled
+ * often without perturbing playback.
+ */
+public class StatsCollector {
+    private static final String TAG = "StatsCollector";
+    private static final String PROC_STAT = "/proc/self/stat";
+    private static final String TASK_DIR = "/proc/self/task";
+    private static final long TASK_REFRESH_INTERVAL = 5000; // in ms
+    private static final int MS_PER_TICK = 10; // USER_HZ: 100
+
+    /*
+     * Threads created by mpd inherit the name of the MPDThread java thread,
+     * unless mpd names them.
+     */
+    private static final String sMPDThreadNames[] = new String[] {
+        "MPDThread",
+        "player",
+        "decoder",
+        "output",
+        "update",
+    };
+
+    private final Context mContext;
+    private final ArrayList<RandomAccessFile> mTasks = new ArrayList<RandomAccessFile>();
+    private final byte[] mBuffer = new byte[1024];
+    private final long[] mNativeStats = new long[LibMPD.STAT_COUNT];
+    private RandomAccessFile mProcStat = null;
+    private File mDbFile = null;
+    private long mLastTaskRefresh = -TASK_REFRESH_INTERVAL;
+
+    public StatsCollector(Context ctx) {
+        mContext = ctx;
+    }
+
+    private int read(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        int len = 0, read;
+        while (len < mBuffer.length && (read = file.read(mBuffer, len, mBuffer.length - len)) > 0)
+            len += read;
+        return len;
+    }
+
+    /*
+     * Return utime + stime in ticks from a /proc stat file in mBuffer.
+     */
+    private long parseCpuTicks(int len) {
+        int i = len - 1;
+        while (i >= 0 && mBuffer[i] != ')')
+            i--;
+        if (i < 0)
+            return -1;
+
+        // fields after "(comm)": state (3) ... utime (14) stime (15)
+        int field = 2;
+        long utime = 0, stime = 0;
+        for (i = i + 1; i < len && field <= 15; ++i) {
+            final byte c = mBuffer[i];
+            if (c == ' ') {
+                field++;
+            } else if (c >= '0' && c <= '9') {
+                if (field == 14)
+                    utime = utime * 10 + (c - '0');
+                else if (field == 15)
+                    stime = stime * 10 + (c - '0');
+            }
+        }
+        return field > 15 ? utime + stime : -1;
+    }
+
+    private static String readComm(RandomAccessFile stat) throws IOException {
+        stat.seek(0);
+        String line = stat.readLine();
+        if (line == null)
+            return null;
+        int begin = line.indexOf('('), end = line.lastIndexOf(')');
+        return begin >= 0 && end > begin ? line.substring(begin + 1, end) : null;
+    }
+
+    private static boolean isMPDThread(String comm) {
+        if (comm == null)
+            return false;
+        for (String name : sMPDThreadNames)
+            if (comm.startsWith(name))
+                return true;
+        return false;
+    }
+
+    private void closeTasks() {
+        for (RandomAccessFile stat : mTasks) {
+            try {
+                stat.close();
+            } catch (IOException e) {
+            }
+        }
+        mTasks.clear();
+    }
+
+    private void refreshTasks() {
+        closeTasks();
+
+        String[] tids = new File(TASK_DIR).list();
+        if (tids == null)
+            return;
+        for (String tid : tids) {
+            try {
+                RandomAccessFile stat = new RandomAccessFile(TASK_DIR + "/" + tid + "/stat", "r");
+                if (isMPDThread(readComm(stat)))
+                    mTasks.add(stat);
+                else
+                    stat.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private long sampleMPDCpuTicks() {
+        long ticks = 0;
+        for (int i = mTasks.size() - 1; i >= 0; --i) {
+            try {
+                long taskTicks = parseCpuTicks(read(mTasks.get(i)));
+                if (taskTicks >= 0)
+                    ticks += taskTicks;
+            } catch (IOException e) {
+                // task is gone
+                try {
+                    mTasks.remove(i).close();
+                } catch (IOException e2) {
+                }
+            }
+        }
+        return ticks;
+    }
+
+    private long sampleProcessCpuTicks() {
+        try {
+            if (mProcStat == null)
+                mProcStat = new RandomAccessFile(PROC_STAT, "r");
+            return parseCpuTicks(read(mProcStat));
+        } catch (IOException e) {
+            Log.e(TAG, "can't read " + PROC_STAT + ": " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Fill stats with a new sample.
+     */
+    public synchronized void sample(MPDStats stats) {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastTaskRefresh >= TASK_REFRESH_INTERVAL) {
+            refreshTasks();
+            mDbFile = MPDConf.getDatabaseFile(mContext);
+            mLastTaskRefresh = now;
+        }
+
+        final long processTicks = sampleProcessCpuTicks();
+        stats.cpuTimeMs = processTicks >= 0 ? processTicks * MS_PER_TICK : -1;
+        stats.mpdCpuTimeMs = sampleMPDCpuTicks() * MS_PER_TICK;
+        stats.mpdThreads = mTasks.size();
+        stats.nativeHeapBytes = Debug.getNativeHeapAllocatedSize();
+        stats.uptimeMs = LibMPD.getUptime();
+        stats.libVariant = LibMPD.getVariant();
+
+        LibMPD.getStats(mNativeStats);
+        stats.underruns = mNativeStats[LibMPD.STAT_UNDERRUNS];
+        stats.songs = mNativeStats[LibMPD.STAT_SONGS];
+        stats.clients = mNativeStats[LibMPD.STAT_CLIENTS];
+
+        stats.dbSizeBytes = mDbFile.exists() ? mDbFile.length() : -1;
+    }
+
+    public synchronized void release() {
+        closeTasks();
+        try {
+            if (mProcStat != null)
+                mProcStat.close();
+        } catch (IOException e) {
+        }
+        mProcStat = null;
+        mLastTaskRefresh = -TASK_REFRESH_INTERVAL;
+    }
+}
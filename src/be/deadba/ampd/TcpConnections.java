@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+
+import android.os.Process;
+
+/**
+ * Count of the tcp connections to a local port, from /proc/net/tcp and
+ * /proc/net/tcp6.
+ *
+ * Used when libmpd doesn't count its clients (LibMPD.STAT_CLIENTS): the
+ * connections accepted by mpd are the established sockets of the process
+ * uid bound to the mpd port. IPv4 clients of a dual-stack socket are listed
+ * in tcp6.
+ */
+public class TcpConnections {
+    private static final String sProcFiles[] = new String[] {
+        "/proc/net/tcp",
+        "/proc/net/tcp6",
+    };
+
+    private static final String STATE_ESTABLISHED = "01";
+
+    /* columns of a socket line: "sl local_address rem_address st ... uid" */
+    private static final int COLUMN_LOCAL_ADDRESS = 1;
+    private static final int COLUMN_STATE = 3;
+    private static final int COLUMN_UID = 7;
+
+    /*
+     * Return the number of established connections of a file, or -1 if it
+     * can't be read.
+     */
+    private static int count(String path, String portSuffix, String uid) {
+        BufferedReader reader = null;
+        int count = 0;
+
+        try {
+            reader = new BufferedReader(new FileReader(path));
+            String line = reader.readLine(); // header
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.trim().split("\\s+");
+                if (columns.length > COLUMN_UID
+                        && columns[COLUMN_STATE].equals(STATE_ESTABLISHED)
+                        && columns[COLUMN_LOCAL_ADDRESS].endsWith(portSuffix)
+                        && columns[COLUMN_UID].equals(uid))
+                    count++;
+            }
+            return count;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the number of established connections to port, accepted by
+     * this process, or -1 if /proc/net isn't readable.
+     */
+    public static int countEstablished(int port) {
+        final String portSuffix = String.format(Locale.US, ":%04X", port);
+        final String uid = Integer.toString(Process.myUid());
+        int total = -1;
+
+        for (String path : sProcFiles) {
+            final int count = count(path, portSuffix, uid);
+            if (count >= 0)
+                total = Math.max(total, 0) + count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Scheduling of the mpd audio threads.
+ *
+ * The mpd threads are found by name in /proc/self/task. With FLAG_PRIORITY,
+ * the output threads get the nice value of THREAD_PRIORITY_URGENT_AUDIO and
+ * the player and decoder threads the one of THREAD_PRIORITY_AUDIO, so that
+ * the UI doesn't preempt them. With FLAG_BIG_CORES, they are pinned to the
+ * fastest cluster of big.LITTLE SoCs, see CpuFeatures.getBigCores(). Threads
+ * are tuned once: apply() is called when new threads may have been created
+ * (start, playback).
+ */
+public class ThreadScheduler {
+    private static final String TAG = "ThreadScheduler";
+    private static final String TASK_DIR = "/proc/self/task";
+
+    public static final int FLAG_PRIORITY = 1;
+    public static final int FLAG_BIG_CORES = 2;
+
+    /* nice values, like android.os.Process.THREAD_PRIORITY_* */
+    private static final int PRIORITY_DEFAULT = 0;
+    private static final int PRIORITY_AUDIO = -16;
+    private static final int PRIORITY_URGENT_AUDIO = -19;
+
+    private static final int CLASS_OTHER = 0;
+    private static final int CLASS_OUTPUT = 1;
+    private static final int CLASS_DECODER = 2;
+
+    private final long mAllCores;
+    private int mFlags = 0;
+    /* tuned threads: tid -> class */
+    private final Map<Integer, Integer> mThreads = new HashMap<Integer, Integer>();
+
+    public ThreadScheduler() {
+        mAllCores = CpuFeatures.getPossibleCores();
+    }
+
+    private static String readComm(String tid) {
+        BufferedReader reader = null;
+        String line = null;
+        try {
+            reader = new BufferedReader(new FileReader(TASK_DIR + "/" + tid + "/comm"), 64);
+            line = reader.readLine();
+        } catch (IOException e) {
+        }
+        try {
+            if (reader != null)
+                reader.close();
+        } catch (IOException e) {
+        }
+        return line != null ? line.trim() : null;
+    }
+
+    private static int classify(String comm) {
+        if (comm == null)
+            return CLASS_OTHER;
+        if (comm.startsWith("output"))
+            return CLASS_OUTPUT;
+        if (comm.startsWith("decoder") || comm.startsWith("player"))
+            return CLASS_DECODER;
+        return CLASS_OTHER;
+    }
+
+    private void tune(int tid, int threadClass, int flags) {
+        int priority = PRIORITY_DEFAULT;
+        if ((flags & FLAG_PRIORITY) != 0)
+            priority = threadClass == CLASS_OUTPUT ? PRIORITY_URGENT_AUDIO : PRIORITY_AUDIO;
+        int ret = LibMPD.setThreadPriority(tid, priority);
+        if (ret != 0)
+            Log.w(TAG, "can't set the priority of " + tid + ": " + ret);
+
+        final long bigCores = CpuFeatures.getBigCores();
+        if (bigCores != 0) {
+            ret = LibMPD.setThreadAffinity(tid, (flags & FLAG_BIG_CORES) != 0 ? bigCores : mAllCores);
+            if (ret != 0)
+                Log.w(TAG, "can't set the affinity of " + tid + ": " + ret);
+        }
+    }
+
+    /**
+     * Set the scheduling flags, threads already tuned are tuned again.
+     */
+    public synchronized void configure(int flags) {
+        if (flags == mFlags)
+            return;
+        Log.d(TAG, "flags: " + flags);
+        mFlags = flags;
+        for (Map.Entry<Integer, Integer> thread : mThreads.entrySet())
+            tune(thread.getKey(), thread.getValue(), mFlags);
+    }
+
+    /**
+     * Tune the mpd threads that were created since the last call.
+     */
+    public synchronized void apply() {
+        String[] tids = new File(TASK_DIR).list();
+        if (tids == null)
+            return;
+
+        Set<Integer> alive = new HashSet<Integer>();
+        for (String name : tids) {
+            final int tid;
+            try {
+                tid = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            alive.add(tid);
+            if (mThreads.containsKey(tid))
+                continue;
+            final String comm = readComm(name);
+            final int threadClass = classify(comm);
+            if (threadClass == CLASS_OTHER)
+                continue;
+            Log.d(TAG, "tuning " + comm + " (" + tid + ")");
+            mThreads.put(tid, threadClass);
+            if (mFlags != 0)
+                tune(tid, threadClass, mFlags);
+        }
+        // the tids of the threads that are gone can be reused
+        Iterator<Integer> it = mThreads.keySet().iterator();
+        while (it.hasNext()) {
+            if (!alive.contains(it.next()))
+                it.remove();
+        }
+    }
+
+    /**
+     * Forget the tuned threads, once mpd is stopped.
+     */
+    public synchronized void reset() {
+        mThreads.clear();
+    }
+
+    public synchronized int getFlags() {
+        return mFlags;
+    }
+
+    public synchronized int getThreadCount() {
+        return mThreads.size();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.SharedPreferences.Editor;
+import be.deadba.ampd.bench.StandInContext;
+
+/**
+ * Benchmarks of the config generation, run by MPDService before each start.
+ *
+ * This class is in the be.deadba.ampd package to reach the package-private
+ * MPDConf.generate(), MPDConf.selectDatabaseDirectory(), MPDConf.toString()
+ * and MPDConf.Entries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfBenchmark {
+
+    @State(Scope.Thread)
+    public static class App {
+        StandInContext context;
+        File dbDir;
+        MPDConf.Entries entries;
+        final List<String> liveCommands = new ArrayList<String>();
+        boolean toggle = false;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            context = new StandInContext();
+            MPDConf.reload(context);
+            dbDir = MPDConf.selectDatabaseDirectory(context);
+            entries = MPDConf.generate(context, dbDir);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            context.delete();
+        }
+
+        void put(String key, String value) {
+            Editor editor = MPDConf.getSharedPreferences(context).edit();
+            editor.putString(key, value);
+            editor.commit();
+        }
+    }
+
+    /*
+     * First start of a fresh install: no config, no database cache.
+     */
+    @State(Scope.Thread)
+    public static class ColdApp {
+        StandInContext context;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            context = new StandInContext();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            context.delete();
+        }
+    }
+
+    @Benchmark
+    public MPDConf.Entries entries() {
+        MPDConf.Entries entries = new MPDConf.Entries();
+        entries.put("db_file", "/data/data/be.deadba.ampd/files/db_cache/0123456789abcdef/database");
+        entries.put("state_file", "/data/data/be.deadba.ampd/files/db_cache/0123456789abcdef/state");
+        entries.put("log_level", "default");
+        entries.put("replaygain", "off", "replay_gain_mode");
+        entries.put("music_directory", "/sdcard/Music");
+        entries.put("port", "6600");
+        MPDConf.Entries block = new MPDConf.Entries();
+        block.put("type", "opensles_android");
+        block.put("name", "opensles_android");
+        entries.put("audio_output", block);
+        return entries;
+    }
+
+    @Benchmark
+    public MPDConf.Entries generate(App app) {
+        return MPDConf.generate(app.context, app.dbDir);
+    }
+
+    @Benchmark
+    public String write(App app) {
+        return MPDConf.toString(app.entries);
+    }
+
+    /*
+     * Reload of an unchanged config: the file isn't written.
+     */
+    @Benchmark
+    public int reloadUnchanged(App app) {
+        app.liveCommands.clear();
+        return MPDConf.reload(app.context, app.liveCommands);
+    }
+
+    /*
+     * Preference commit and reload of a setting applied without restart.
+     */
+    @Benchmark
+    public int reloadLive(App app) {
+        app.toggle = !app.toggle;
+        app.put("mpd_replaygain", app.toggle ? "track" : "off");
+        app.liveCommands.clear();
+        return MPDConf.reload(app.context, app.liveCommands);
+    }
+
+    /*
+     * Preference commit and reload of a setting that needs a restart: the
+     * file is written.
+     */
+    @Benchmark
+    public int reloadRestart(App app) {
+        app.toggle = !app.toggle;
+        app.put("mpd_port", app.toggle ? "6601" : "6600");
+        app.liveCommands.clear();
+        return MPDConf.reload(app.context, app.liveCommands);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public int reloadCold(ColdApp app) {
+        return MPDConf.reload(app.context, new ArrayList<String>());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transition latency of MPDLifecycle, with a daemon that is ready as soon as
+ * it is started: this measures the cost of the lifecycle itself (thread
+ * hand-offs, coalescing), without mpd.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LifecycleBenchmark {
+    private static final int BURST = 100;
+
+    @State(Scope.Thread)
+    public static class App implements MPDLifecycle.Daemon, MPDLifecycle.Listener {
+        MPDLifecycle lifecycle;
+        final AtomicInteger starts = new AtomicInteger();
+        private int mState = MPDLifecycle.STATE_STOPPED;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            lifecycle = new MPDLifecycle(this, this);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            lifecycle.shutdown();
+        }
+
+        public boolean start(int generation) {
+            starts.incrementAndGet();
+            lifecycle.onReady(generation);
+            return true;
+        }
+
+        public void stop() {
+        }
+
+        public int reload(List<String> liveCommands) {
+            return MPDConf.RELOAD_RESTART;
+        }
+
+        public void applyLive(List<String> liveCommands) {
+        }
+
+        public synchronized void onStateChanged(int oldState, int newState) {
+            mState = newState;
+            notifyAll();
+        }
+
+        synchronized void waitFor(int state) throws InterruptedException {
+            while (mState != state)
+                wait();
+        }
+
+        synchronized void waitForStart(int starts) throws InterruptedException {
+            while (mState != MPDLifecycle.STATE_READY || this.starts.get() < starts)
+                wait();
+        }
+    }
+
+    @Benchmark
+    public void startStop(App app) throws InterruptedException {
+        app.lifecycle.start();
+        app.waitFor(MPDLifecycle.STATE_READY);
+        app.lifecycle.stop();
+        app.waitFor(MPDLifecycle.STATE_STOPPED);
+    }
+
+    /*
+     * A burst of restart requests, like a burst of preference changes: it
+     * should cost one restart, not BURST.
+     */
+    @Benchmark
+    public int restartBurst(App app) throws InterruptedException {
+        app.lifecycle.start();
+        app.waitFor(MPDLifecycle.STATE_READY);
+        final int starts = app.starts.get();
+        for (int i = 0; i < BURST; ++i)
+            app.lifecycle.restart();
+        app.waitForStart(starts + 1);
+        app.lifecycle.stop();
+        app.waitFor(MPDLifecycle.STATE_STOPPED);
+        return app.starts.get() - starts;
+    }
+
+    @Benchmark
+    public int reloadBurst(App app) throws InterruptedException {
+        app.lifecycle.start();
+        app.waitFor(MPDLifecycle.STATE_READY);
+        final int starts = app.starts.get();
+        for (int i = 0; i < BURST; ++i)
+            app.lifecycle.reload();
+        app.waitForStart(starts + 1);
+        app.lifecycle.stop();
+        app.waitFor(MPDLifecycle.STATE_STOPPED);
+        return app.starts.get() - starts;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+
+/**
+ * Context of an application installed in a temporary directory.
+ *
+ * String resources are read from the res/values/strings.xml of the
+ * application (the "ampd.res" property, ../../res by default) and bound to
+ * the ids of the generated R class.
+ */
+public class StandInContext extends Context {
+    private final File mDataDir;
+    private final File mFilesDir;
+    private final Resources mResources;
+    private final ActivityManager mActivityManager = new ActivityManager();
+    private final Map<String, SharedPreferences> mPreferences =
+            new HashMap<String, SharedPreferences>();
+
+    public StandInContext() {
+        try {
+            mDataDir = File.createTempFile("ampd", "");
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+        mDataDir.delete();
+        mFilesDir = new File(mDataDir, "files");
+        new File(mDataDir, "shared_prefs").mkdirs();
+        mFilesDir.mkdirs();
+        mResources = new Resources(loadStrings());
+    }
+
+    private static Map<Integer, String> loadStrings() {
+        Map<Integer, String> strings = new HashMap<Integer, String>();
+        File file = new File(System.getProperty("ampd.res", "../../res"), "values/strings.xml");
+        try {
+            NodeList nodes = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(file).getElementsByTagName("string");
+            Class<?> rString = Class.forName("be.deadba.ampd.R$string");
+            for (int i = 0; i < nodes.getLength(); ++i) {
+                Element element = (Element) nodes.item(i);
+                try {
+                    Field field = rString.getField(element.getAttribute("name"));
+                    strings.put(field.getInt(null), element.getTextContent());
+                } catch (NoSuchFieldException e) {
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("can't load " + file, e);
+        }
+        return strings;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Remove the data directory.
+     */
+    public void delete() {
+        delete(mDataDir);
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences sp = mPreferences.get(name);
+        if (sp == null) {
+            sp = new StandInSharedPreferences(new File(mDataDir, "shared_prefs/" + name + ".xml"));
+            mPreferences.put(name, sp);
+        }
+        return sp;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    @Override
+    public File getFileStreamPath(String name) {
+        return new File(mFilesDir, name);
+    }
+
+    @Override
+    public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+        return new FileOutputStream(getFileStreamPath(name));
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        return name.equals(ACTIVITY_SERVICE) ? mActivityManager : null;
+    }
+
+    @Override
+    public Resources getResources() {
+        return mResources;
+    }
+}
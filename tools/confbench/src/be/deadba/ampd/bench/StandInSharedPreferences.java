@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * SharedPreferences kept in memory and written to an xml file on commit,
+ * like the Android implementation.
+ */
+public class StandInSharedPreferences implements SharedPreferences {
+    private final File mFile;
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+    public StandInSharedPreferences(File file) {
+        mFile = file;
+    }
+
+    private class StandInEditor implements Editor {
+        private final Map<String, Object> mModified = new HashMap<String, Object>();
+        private boolean mClear = false;
+
+        public Editor putString(String key, String value) {
+            mModified.put(key, value);
+            return this;
+        }
+
+        public Editor putInt(String key, int value) {
+            mModified.put(key, value);
+            return this;
+        }
+
+        public Editor putLong(String key, long value) {
+            mModified.put(key, value);
+            return this;
+        }
+
+        public Editor putBoolean(String key, boolean value) {
+            mModified.put(key, value);
+            return this;
+        }
+
+        public Editor remove(String key) {
+            mModified.put(key, this);
+            return this;
+        }
+
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        public boolean commit() {
+            synchronized (StandInSharedPreferences.this) {
+                if (mClear)
+                    mValues.clear();
+                for (Map.Entry<String, Object> entry : mModified.entrySet()) {
+                    if (entry.getValue() == this)
+                        mValues.remove(entry.getKey());
+                    else
+                        mValues.put(entry.getKey(), entry.getValue());
+                }
+                return write();
+            }
+        }
+
+        public void apply() {
+            commit();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    /*
+     * Write the whole map through a temporary file, as Android does.
+     */
+    private boolean write() {
+        File tmp = new File(mFile.getPath() + ".bak");
+        Writer writer = null;
+        boolean success = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            writer = new OutputStreamWriter(fos, "UTF-8");
+            writer.write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                final Object value = entry.getValue();
+                if (value instanceof String)
+                    writer.write("    <string name=\"" + escape(entry.getKey()) + "\">"
+                            + escape((String) value) + "</string>\n");
+                else
+                    writer.write("    <" + (value instanceof Boolean ? "boolean" : "int")
+                            + " name=\"" + escape(entry.getKey()) + "\" value=\"" + value + "\" />\n");
+            }
+            writer.write("</map>\n");
+            writer.flush();
+            fos.getFD().sync();
+            success = true;
+        } catch (IOException e) {
+        }
+        try {
+            if (writer != null)
+                writer.close();
+        } catch (IOException e) {
+        }
+        return success && tmp.renameTo(mFile);
+    }
+
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(mValues);
+    }
+
+    public synchronized String getString(String key, String defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    public synchronized int getInt(String key, int defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    public synchronized long getLong(String key, long defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    public Editor edit() {
+        return new StandInEditor();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.content;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+import android.content.res.Resources;
+
+/**
+ * JVM stand-in of the Context methods used by MPDConf.
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0x0000;
+    public static final int MODE_MULTI_PROCESS = 0x0004;
+    public static final String ACTIVITY_SERVICE = "activity";
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+    public abstract File getFilesDir();
+    public abstract File getFileStreamPath(String name);
+    public abstract FileOutputStream openFileOutput(String name, int mode)
+            throws FileNotFoundException;
+    public abstract Object getSystemService(String name);
+    public abstract Resources getResources();
+
+    public final String getString(int resId) {
+        return getResources().getString(resId);
+    }
+}
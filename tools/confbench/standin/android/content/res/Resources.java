@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.content.res;
+
+import java.util.Map;
+
+/**
+ * JVM stand-in of Resources, strings are given by the benchmark.
+ */
+public class Resources {
+    private final Map<Integer, String> mStrings;
+
+    public Resources(Map<Integer, String> strings) {
+        mStrings = strings;
+    }
+
+    public String getString(int id) {
+        String string = mStrings.get(id);
+        if (string == null)
+            throw new IllegalArgumentException("no string resource 0x" + Integer.toHexString(id));
+        return string;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.os;
+
+import java.io.File;
+
+/**
+ * JVM stand-in of Environment, the external storage is in java.io.tmpdir.
+ */
+public class Environment {
+    public static String DIRECTORY_MUSIC = "Music";
+
+    public static File getExternalStoragePublicDirectory(String type) {
+        return new File(System.getProperty("java.io.tmpdir"), type);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the MPDLifecycle state machine, run on the JVM with a fake
+ * daemon. Each test prints ok or FAIL, the exit status is the number of
+ * failures.
+ */
+public class MPDLifecycleTest {
+    private static final long TIMEOUT = 5000; // in ms
+
+    private static class AssertionFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public AssertionFailed(String message) {
+            super(message);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionFailed(message);
+    }
+
+    private static void checkEquals(long expected, long actual, String message) {
+        if (expected != actual)
+            throw new AssertionFailed(message + ": expected " + expected + ", got " + actual);
+    }
+
+    /*
+     * Daemon that records the calls. It is ready only when the test says
+     * so, and reload() can be held to keep the lifecycle thread busy while
+     * requests come in.
+     */
+    private static class FakeDaemon implements MPDLifecycle.Daemon, MPDLifecycle.Listener {
+        final MPDLifecycle lifecycle = new MPDLifecycle(this, this);
+        final List<Integer> starts = new ArrayList<Integer>();
+        final List<Integer> states = new ArrayList<Integer>();
+        int generation = -1;
+        int stops = 0;
+        int reloads = 0;
+        boolean readyOnStart = false;
+        int reloadResult = MPDConf.RELOAD_NONE;
+        volatile CountDownLatch reloadEntered = null;
+        volatile CountDownLatch reloadRelease = null;
+
+        public synchronized boolean start(int generation) {
+            starts.add(generation);
+            this.generation = generation;
+            notifyAll();
+            if (readyOnStart)
+                lifecycle.onReady(generation);
+            return true;
+        }
+
+        public synchronized void stop() {
+            stops++;
+        }
+
+        public int reload(List<String> liveCommands) {
+            final CountDownLatch entered = reloadEntered;
+            final CountDownLatch release = reloadRelease;
+            synchronized (this) {
+                reloads++;
+            }
+            if (entered != null)
+                entered.countDown();
+            try {
+                if (release != null)
+                    release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+            synchronized (this) {
+                return reloadResult;
+            }
+        }
+
+        public void applyLive(List<String> liveCommands) {
+        }
+
+        public synchronized void onStateChanged(int oldState, int newState) {
+            states.add(newState);
+            notifyAll();
+        }
+
+        synchronized void waitForState(int state) throws InterruptedException {
+            final long end = System.currentTimeMillis() + TIMEOUT;
+            long now;
+            while (lifecycle.getState() != state && (now = System.currentTimeMillis()) < end)
+                wait(end - now);
+            checkEquals(state, lifecycle.getState(), "state");
+        }
+
+        synchronized int waitForStarts(int count) throws InterruptedException {
+            final long end = System.currentTimeMillis() + TIMEOUT;
+            long now;
+            while (starts.size() < count && (now = System.currentTimeMillis()) < end)
+                wait(end - now);
+            checkEquals(count, starts.size(), "starts");
+            return generation;
+        }
+
+        /*
+         * Keep the lifecycle thread in reload() until the returned latch is
+         * released.
+         */
+        CountDownLatch holdThread() throws InterruptedException {
+            reloadEntered = new CountDownLatch(1);
+            reloadRelease = new CountDownLatch(1);
+            lifecycle.reload();
+            check(reloadEntered.await(TIMEOUT, TimeUnit.MILLISECONDS), "reload not called");
+            return reloadRelease;
+        }
+
+        /*
+         * Wait until the lifecycle thread processed all the requests sent
+         * before: a reload is only done once the previous actions are done.
+         * Not usable while starting, reloads wait for mpd to be ready.
+         */
+        void sync() throws InterruptedException {
+            holdThread().countDown();
+            reloadEntered = null;
+            reloadRelease = null;
+        }
+
+        synchronized void clear() {
+            starts.clear();
+            states.clear();
+            stops = 0;
+            reloads = 0;
+        }
+    }
+
+    private static FakeDaemon startReady() throws InterruptedException {
+        FakeDaemon daemon = new FakeDaemon();
+        daemon.readyOnStart = true;
+        daemon.lifecycle.start();
+        daemon.waitForState(MPDLifecycle.STATE_READY);
+        daemon.clear();
+        return daemon;
+    }
+
+    static void testRestartBurstStartsOnce() throws InterruptedException {
+        FakeDaemon daemon = startReady();
+        CountDownLatch release = daemon.holdThread();
+        for (int i = 0; i < 100; ++i) {
+            daemon.lifecycle.restart();
+            daemon.lifecycle.reload();
+        }
+        release.countDown();
+        daemon.reloadEntered = null;
+        daemon.reloadRelease = null;
+        daemon.waitForStarts(1);
+        daemon.waitForState(MPDLifecycle.STATE_READY);
+        daemon.sync();
+        synchronized (daemon) {
+            checkEquals(1, daemon.starts.size(), "starts");
+            checkEquals(1, daemon.stops, "stops");
+            /* the held reload and the sync one, the burst is dropped by the restart */
+            checkEquals(2, daemon.reloads, "reloads");
+        }
+        daemon.lifecycle.shutdown();
+    }
+
+    static void testReloadBurstRestartsOnce() throws InterruptedException {
+        FakeDaemon daemon = startReady();
+        daemon.reloadResult = MPDConf.RELOAD_RESTART;
+        CountDownLatch release = daemon.holdThread();
+        for (int i = 0; i < 100; ++i)
+            daemon.lifecycle.reload();
+        release.countDown();
+        daemon.reloadEntered = null;
+        daemon.reloadRelease = null;
+        daemon.waitForStarts(1);
+        daemon.waitForState(MPDLifecycle.STATE_READY);
+        daemon.reloadResult = MPDConf.RELOAD_NONE;
+        daemon.sync();
+        synchronized (daemon) {
+            checkEquals(1, daemon.starts.size(), "starts");
+            checkEquals(1, daemon.stops, "stops");
+        }
+        daemon.lifecycle.shutdown();
+    }
+
+    static void testStopCancelsRestart() throws InterruptedException {
+        FakeDaemon daemon = startReady();
+        CountDownLatch release = daemon.holdThread();
+        daemon.lifecycle.restart();
+        daemon.lifecycle.stop();
+        release.countDown();
+        daemon.reloadEntered = null;
+        daemon.reloadRelease = null;
+        daemon.waitForState(MPDLifecycle.STATE_STOPPED);
+        daemon.sync();
+        synchronized (daemon) {
+            checkEquals(0, daemon.starts.size(), "starts");
+            checkEquals(1, daemon.stops, "stops");
+        }
+        daemon.lifecycle.shutdown();
+    }
+
+    static void testStaleEventsIgnored() throws InterruptedException {
+        FakeDaemon daemon = new FakeDaemon();
+        daemon.lifecycle.start();
+        final int first = daemon.waitForStarts(1);
+        daemon.lifecycle.restart();
+        final int second = daemon.waitForStarts(2);
+        check(first != second, "same generation after a restart");
+
+        /*
+         * events are handled before the restart that follows them, the
+         * third start shows that they were processed
+         */
+        daemon.lifecycle.onError(first);
+        daemon.lifecycle.onReady(first);
+        daemon.lifecycle.restart();
+        final int third = daemon.waitForStarts(3);
+        synchronized (daemon) {
+            check(!daemon.states.contains(MPDLifecycle.STATE_READY), "stale ready accepted");
+            check(!daemon.states.contains(MPDLifecycle.STATE_FAILED), "stale error accepted");
+        }
+
+        daemon.lifecycle.onReady(third);
+        daemon.waitForState(MPDLifecycle.STATE_READY);
+        daemon.lifecycle.onError(second);
+        daemon.sync();
+        checkEquals(MPDLifecycle.STATE_READY, daemon.lifecycle.getState(), "state after a stale error");
+        synchronized (daemon) {
+            check(!daemon.states.contains(MPDLifecycle.STATE_FAILED), "stale error accepted");
+        }
+        daemon.lifecycle.shutdown();
+    }
+
+    static void testFailEndsInFailed() throws InterruptedException {
+        FakeDaemon daemon = new FakeDaemon();
+        daemon.lifecycle.start();
+        final int generation = daemon.waitForStarts(1);
+        daemon.lifecycle.onError(generation);
+        daemon.waitForState(MPDLifecycle.STATE_FAILED);
+        daemon.sync();
+        synchronized (daemon) {
+            checkEquals(1, daemon.starts.size(), "starts");
+            checkEquals(1, daemon.stops, "stops");
+        }
+        checkEquals(MPDLifecycle.STATE_FAILED, daemon.lifecycle.getState(), "state");
+        daemon.lifecycle.shutdown();
+    }
+
+    static void testExitEndsInStopped() throws InterruptedException {
+        FakeDaemon daemon = startReady();
+        daemon.lifecycle.onExit(daemon.generation);
+        daemon.waitForState(MPDLifecycle.STATE_STOPPED);
+        daemon.sync();
+        synchronized (daemon) {
+            checkEquals(0, daemon.starts.size(), "starts");
+            checkEquals(1, daemon.stops, "stops");
+        }
+        daemon.lifecycle.shutdown();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int failures = 0;
+        String[] names = new String[] {
+            "testRestartBurstStartsOnce",
+            "testReloadBurstRestartsOnce",
+            "testStopCancelsRestart",
+            "testStaleEventsIgnored",
+            "testFailEndsInFailed",
+            "testExitEndsInStopped",
+        };
+        for (String name : names) {
+            try {
+                MPDLifecycleTest.class.getDeclaredMethod(name).invoke(null);
+                System.out.println("ok   " + name);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                failures++;
+                System.out.println("FAIL " + name + ": " + e.getCause());
+            } catch (Exception e) {
+                failures++;
+                System.out.println("FAIL " + name + ": " + e);
+            }
+        }
+        System.exit(failures);
+    }
+}
@@ -0,0 +1,74 @@
+#!/bin/bash
+#
+# Measure the time mpd takes to load its database on a device, for the
+# database format selected in the settings (see README).
+#
+# usage: dbbench.sh [runs]       restart mpd cold runs times, then report
+#        dbbench.sh -r           only report the sessions already traced
+
+PKG=be.deadba.ampd
+TRACE=/data/data/${PKG}/files/startup_trace
+RUNS=${1:-10}
+TIMEOUT=120 # s
+
+sessions()
+{
+	adb shell cat ${TRACE} 2>/dev/null | tr -d '\r' | grep -c '^# session'
+}
+
+# print "format size load_ms" for each session that loaded a database
+parse()
+{
+	tr -d '\r' | awk '
+	/^# session/ { flush(); fmt = ""; parsed = -1; loaded = -1; next }
+	$1 ~ /^db:/ { split($1, f, ":"); fmt = f[2]; size = f[3] }
+	$1 == "config_parsed" { parsed = $2 }
+	$1 == "db_loaded" { loaded = $2 }
+	function flush() {
+		if (fmt != "" && parsed >= 0 && loaded >= parsed)
+			printf "%s %d %.1f\n", fmt, size, (loaded - parsed) / 1000
+	}
+	END { flush() }'
+}
+
+report()
+{
+	echo "format         runs      size    min ms median ms   mean ms    max ms"
+	sort -k1,1 -k3,3n | awk '
+	{
+		if ($1 != fmt) { flush(); fmt = $1; n = 0; sum = 0 }
+		v[n++] = $3; sum += $3; size = $2
+	}
+	function flush() {
+		if (n > 0)
+			printf "%-12s %6d %9d %9.1f %9.1f %9.1f %9.1f\n", fmt, n, size,
+				v[0], v[int((n - 1) / 2)], sum / n, v[n - 1]
+	}
+	END { flush() }'
+}
+
+if [ "$1" != "-r" ]; then
+	if [ "`adb shell id -u | tr -d '\r'`" != "0" ]; then
+		echo "adb must run as root (adb root): the service isn't exported and"
+		echo "the page cache is dropped before each run"
+		exit 1
+	fi
+	for i in `seq 1 ${RUNS}`; do
+		before=`sessions`
+		adb shell am force-stop ${PKG}
+		adb shell "sync; echo 3 > /proc/sys/vm/drop_caches"
+		adb shell am startservice -n ${PKG}/.MPDService > /dev/null
+		waited=0
+		while [ "`sessions`" = "${before}" ]; do
+			if [ ${waited} -ge ${TIMEOUT} ]; then
+				echo "run ${i}: mpd not ready after ${TIMEOUT} s"
+				exit 1
+			fi
+			sleep 1
+			waited=$((waited + 1))
+		done
+		echo "run ${i}/${RUNS} done"
+	done
+fi
+
+adb shell cat ${TRACE} | parse | report
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd.bench;
+
+import java.io.PrintStream;
+
+/**
+ * Latency histogram with a bounded relative error, like HdrHistogram.
+ *
+ * Values below SUB_BUCKET_COUNT have their own bucket. Above, each power of
+ * two is split in SUB_BUCKET_COUNT / 2 linear sub-buckets, so that a value is
+ * known within 1 / 64 (~1.6%) whatever its magnitude. Recording doesn't
+ * allocate and a histogram is not thread-safe: each thread records in its
+ * own histogram and they are merged with add().
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private static final double PERCENTILES[] = new double[] {
+        50, 90, 99, 99.9, 99.99,
+    };
+
+    private final long[] mCounts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF];
+    private long mTotal = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    private static int index(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        final int bucket = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return bucket * SUB_BUCKET_HALF + (int) (value >>> bucket);
+    }
+
+    /*
+     * Return the highest value that falls in the bucket of index.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        final int bucket = index / SUB_BUCKET_HALF - 1;
+        final long sub = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((sub + 1) << bucket) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        mCounts[index(value)]++;
+        mTotal++;
+        mSum += value;
+        if (value < mMin)
+            mMin = value;
+        if (value > mMax)
+            mMax = value;
+    }
+
+    public void add(Histogram other) {
+        for (int i = 0; i < mCounts.length; ++i)
+            mCounts[i] += other.mCounts[i];
+        mTotal += other.mTotal;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public long getCount() {
+        return mTotal;
+    }
+
+    public long getMin() {
+        return mTotal > 0 ? mMin : 0;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return mTotal > 0 ? (double) mSum / mTotal : 0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        if (mTotal == 0)
+            return 0;
+        long target = (long) Math.ceil(percentile / 100 * mTotal);
+        if (target < 1)
+            target = 1;
+        long count = 0;
+        for (int i = 0; i < mCounts.length; ++i) {
+            count += mCounts[i];
+            if (count >= target)
+                return Math.min(highestValue(i), mMax);
+        }
+        return mMax;
+    }
+
+    /**
+     * Print one line of statistics, values are divided by scale.
+     */
+    public void print(PrintStream out, String name, double scale) {
+        out.printf("%-14s %9d %9.2f %9.2f", name, mTotal, getMin() / scale, getMean() / scale);
+        for (double p : PERCENTILES)
+            out.printf(" %9.2f", getPercentile(p) / scale);
+        out.printf(" %9.2f%n", mMax / scale);
+    }
+
+    public static void printHeader(PrintStream out, String unit) {
+        out.printf("%-14s %9s %9s %9s", "(" + unit + ")", "count", "min", "mean");
+        for (double p : PERCENTILES)
+            out.printf(" %9s", "p" + (p == Math.floor(p) ? String.valueOf((long) p) : String.valueOf(p)));
+        out.printf(" %9s%n", "max");
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2013 Thomas Guillem
+ *
+ * This file is part of aMPD.
+ *
+ * aMPD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aMPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with aMPD. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.deadba.ampd.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import be.deadba.ampd.MPDClient;
+
+/**
+ * Load generator and latency benchmark of the mpd protocol.
+ *
+ * N connections send a weighted mix of commands, either as fast as possible
+ * or at a fixed rate. In fixed rate mode, the latency is measured from the
+ * time the command should have been sent, so that a stalled daemon isn't
+ * hidden by the commands that weren't sent meanwhile. Additional
+ * connections can wait in idle, like the clients that follow the player.
+ *
+ * The sticker command sets a sticker on a random song of the database, which
+ * loads the writes of the sticker database like rating clients do.
+ *
+ * Listeners load the httpd streaming output: each one reads the stream as
+ * fast as it comes and records the gaps between reads. A daemon that keeps
+ * up delivers the bitrate to every listener with gaps well below the buffer
+ * of a player; stalls are gaps above STALL_THRESHOLD.
+ */
+public class MPDBench {
+    private static final PrintStream out = System.out;
+
+    /* default mix, in weights */
+    private static final String MIX_DEFAULT =
+            "status=40,currentsong=30,playlistinfo=10,search=10,idle=10";
+
+    /* a gap between two reads of a listener above it is a stall */
+    private static final long STALL_THRESHOLD = 500000; // in us
+    private static final int STREAM_TIMEOUT = 10000; // in ms
+
+    /* number of songs the sticker command picks from */
+    private static final int STICKER_SONGS = 1000;
+
+    private String mHost = "127.0.0.1";
+    private int mPort = 6600;
+    private int mConnections = 4;
+    private int mIdlers = 0;
+    private int mListeners = 0;
+    private int mStreamPort = 8000;
+    private int mDuration = 30; // in s
+    private int mWarmup = 5; // in s
+    private int mRate = 0; // per connection, in commands/s
+    private String mQuery = "a";
+    private String mMix = MIX_DEFAULT;
+
+    private String[] mNames;
+    private String[] mCommands;
+    private int[] mWeights;
+    private int mTotalWeight = 0;
+    private final List<String> mSongs = new ArrayList<String>();
+
+    private volatile boolean mStop = false;
+    private volatile long mRecordStart;
+
+    private static void usage() {
+        out.println("usage: mpdbench [options]");
+        out.println("  -h <host>         mpd host (127.0.0.1)");
+        out.println("  -p <port>         mpd port (6600)");
+        out.println("  -c <connections>  number of connections sending commands (4)");
+        out.println("  -i <connections>  number of connections waiting in idle (0)");
+        out.println("  -l <listeners>    number of httpd stream listeners (0)");
+        out.println("  -s <port>         httpd stream port (8000)");
+        out.println("  -d <seconds>      duration of the measure (30)");
+        out.println("  -w <seconds>      warmup, not measured (5)");
+        out.println("  -r <rate>         commands/s per connection, 0: as fast as possible (0)");
+        out.println("  -q <query>        search query (a)");
+        out.println("  -m <mix>          command=weight,... (" + MIX_DEFAULT + ")");
+        out.println("                    idle sends idle then noidle, other commands are sent as is");
+        out.println("                    sticker sets a sticker on a random song");
+        System.exit(1);
+    }
+
+    private void parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                if (i + 1 >= args.length)
+                    usage();
+                final String value = args[++i];
+                if (arg.equals("-h"))
+                    mHost = value;
+                else if (arg.equals("-p"))
+                    mPort = Integer.parseInt(value);
+                else if (arg.equals("-c"))
+                    mConnections = Integer.parseInt(value);
+                else if (arg.equals("-i"))
+                    mIdlers = Integer.parseInt(value);
+                else if (arg.equals("-l"))
+                    mListeners = Integer.parseInt(value);
+                else if (arg.equals("-s"))
+                    mStreamPort = Integer.parseInt(value);
+                else if (arg.equals("-d"))
+                    mDuration = Integer.parseInt(value);
+                else if (arg.equals("-w"))
+                    mWarmup = Integer.parseInt(value);
+                else if (arg.equals("-r"))
+                    mRate = Integer.parseInt(value);
+                else if (arg.equals("-q"))
+                    mQuery = value;
+                else if (arg.equals("-m"))
+                    mMix = value;
+                else
+                    usage();
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        parseMix();
+    }
+
+    private void parseMix() {
+        final String[] items = mMix.split(",");
+        mNames = new String[items.length];
+        mCommands = new String[items.length];
+        mWeights = new int[items.length];
+
+        for (int i = 0; i < items.length; ++i) {
+            final int idx = items[i].indexOf('=');
+            if (idx <= 0)
+                usage();
+            mNames[i] = items[i].substring(0, idx);
+            try {
+                mWeights[i] = Integer.parseInt(items[i].substring(idx + 1));
+            } catch (NumberFormatException e) {
+                usage();
+            }
+            if (mNames[i].equals("search"))
+                mCommands[i] = "search any " + MPDClient.quote(mQuery);
+            else
+                mCommands[i] = mNames[i];
+            mTotalWeight += mWeights[i];
+        }
+        if (mTotalWeight <= 0)
+            usage();
+    }
+
+    private int pick(Random random) {
+        int value = random.nextInt(mTotalWeight);
+        for (int i = 0; i < mWeights.length; ++i) {
+            value -= mWeights[i];
+            if (value < 0)
+                return i;
+        }
+        return mWeights.length - 1;
+    }
+
+    private static void execute(MPDClient client, String command) throws IOException {
+        if (command.equals("idle")) {
+            /* mpd answers the idle command once noidle is received */
+            client.send("idle");
+            client.command("noidle");
+        } else {
+            client.command(command);
+        }
+    }
+
+    private String stickerCommand(Random random) {
+        return "sticker set song " + MPDClient.quote(mSongs.get(random.nextInt(mSongs.size())))
+                + " mpdbench " + random.nextInt(1000);
+    }
+
+    private boolean hasSticker() {
+        for (String name : mNames)
+            if (name.equals("sticker"))
+                return true;
+        return false;
+    }
+
+    private void loadSongs(MPDClient client) throws IOException {
+        for (String line : client.command("listall")) {
+            if (line.startsWith("file: ")) {
+                mSongs.add(line.substring(6));
+                if (mSongs.size() >= STICKER_SONGS)
+                    break;
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        private final MPDClient mClient = new MPDClient(mHost, mPort);
+        private final Random mRandom;
+        final Histogram[] mHistograms = new Histogram[mCommands.length];
+        final long[] mErrors = new long[mCommands.length];
+        long mConnectionErrors = 0;
+
+        public Worker(int id) {
+            super("Worker" + id);
+            mRandom = new Random(id);
+            for (int i = 0; i < mHistograms.length; ++i)
+                mHistograms[i] = new Histogram();
+        }
+
+        @Override
+        public void run() {
+            final long interval = mRate > 0 ? 1000000000L / mRate : 0; // in ns
+            long next = System.nanoTime();
+
+            while (!mStop) {
+                if (interval > 0) {
+                    final long now = System.nanoTime();
+                    if (next > now) {
+                        try {
+                            Thread.sleep((next - now) / 1000000, (int) ((next - now) % 1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                final int cmd = pick(mRandom);
+                final String command = mNames[cmd].equals("sticker")
+                        ? stickerCommand(mRandom) : mCommands[cmd];
+                final long start = interval > 0 ? next : System.nanoTime();
+                next += interval;
+                try {
+                    mClient.connect();
+                    execute(mClient, command);
+                    final long end = System.nanoTime();
+                    if (start >= mRecordStart)
+                        mHistograms[cmd].record((end - start) / 1000);
+                } catch (MPDClient.MPDException e) {
+                    mErrors[cmd]++;
+                } catch (IOException e) {
+                    mConnectionErrors++;
+                    mClient.close();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e2) {
+                        break;
+                    }
+                    next = System.nanoTime();
+                }
+            }
+            mClient.close();
+        }
+    }
+
+    private class Idler extends Thread {
+        private final MPDClient mClient = new MPDClient(mHost, mPort);
+        long mWakeups = 0;
+
+        public Idler(int id) {
+            super("Idler" + id);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mClient.connect();
+                mClient.setTimeout(0);
+                while (!mStop) {
+                    mClient.command("idle");
+                    mWakeups++;
+                }
+            } catch (IOException e) {
+                if (!mStop)
+                    out.println(getName() + ": " + e);
+            }
+            mClient.close();
+        }
+
+        public void finish() {
+            mClient.close();
+        }
+    }
+
+    private class Listener extends Thread {
+        private Socket mSocket = null;
+        final Histogram mGaps = new Histogram();
+        long mFirstByte = -1; // in us
+        long mBytes = 0;
+        long mStalls = 0;
+        String mError = null;
+
+        public Listener(int id) {
+            super("Listener" + id);
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1)
+                    throw new IOException("unexpected end of header");
+                if (c != '\r' && line.length() < 1024)
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        /*
+         * Skip the response header, return false if the status isn't 200.
+         */
+        private boolean readHeader(InputStream in) throws IOException {
+            final String status = readLine(in);
+            while (readLine(in).length() > 0)
+                ;
+            if (!status.startsWith("HTTP/") || status.indexOf(" 200") < 0) {
+                mError = status;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[16 * 1024];
+            try {
+                final long start = System.nanoTime();
+                mSocket = new Socket();
+                mSocket.connect(new InetSocketAddress(mHost, mStreamPort), STREAM_TIMEOUT);
+                mSocket.setSoTimeout(STREAM_TIMEOUT);
+                OutputStream os = mSocket.getOutputStream();
+                os.write(("GET / HTTP/1.0\r\nHost: " + mHost + "\r\n\r\n").getBytes("US-ASCII"));
+                os.flush();
+                InputStream in = mSocket.getInputStream();
+                if (!readHeader(in)) {
+                    finish();
+                    return;
+                }
+
+                long last = -1;
+                int read;
+                while (!mStop && (read = in.read(buffer)) != -1) {
+                    final long now = System.nanoTime();
+                    if (mFirstByte < 0)
+                        mFirstByte = (now - start) / 1000;
+                    if (last >= 0 && last >= mRecordStart) {
+                        final long gap = (now - last) / 1000;
+                        mGaps.record(gap);
+                        if (gap > STALL_THRESHOLD)
+                            mStalls++;
+                    }
+                    if (now >= mRecordStart)
+                        mBytes += read;
+                    last = now;
+                }
+                if (!mStop)
+                    mError = "closed by the server";
+            } catch (IOException e) {
+                if (!mStop)
+                    mError = e.toString();
+            }
+            finish();
+        }
+
+        public void finish() {
+            try {
+                if (mSocket != null)
+                    mSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        MPDClient client = new MPDClient(mHost, mPort);
+        try {
+            client.connect();
+        } catch (IOException e) {
+            out.println("can't connect to " + mHost + ":" + mPort + ": " + e.getMessage());
+            System.exit(1);
+        }
+        out.println("mpd " + client.getVersion() + " on " + mHost + ":" + mPort);
+        if (hasSticker()) {
+            try {
+                loadSongs(client);
+            } catch (IOException e) {
+                out.println("can't list the songs: " + e.getMessage());
+                System.exit(1);
+            }
+            if (mSongs.isEmpty()) {
+                out.println("no song in the database for the sticker command");
+                System.exit(1);
+            }
+        }
+        client.close();
+        out.println(mConnections + " connections, " + mIdlers + " idle connections, "
+                + (mRate > 0 ? mRate + " commands/s" : "closed loop") + ", mix: " + mMix);
+        if (mListeners > 0)
+            out.println(mListeners + " stream listeners on " + mHost + ":" + mStreamPort);
+        out.println("warmup " + mWarmup + " s, measure " + mDuration + " s");
+
+        List<Idler> idlers = new ArrayList<Idler>();
+        for (int i = 0; i < mIdlers; ++i) {
+            Idler idler = new Idler(i);
+            idler.start();
+            idlers.add(idler);
+        }
+
+        mRecordStart = Long.MAX_VALUE;
+        List<Listener> listeners = new ArrayList<Listener>();
+        for (int i = 0; i < mListeners; ++i) {
+            Listener listener = new Listener(i);
+            listener.start();
+            listeners.add(listener);
+        }
+
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < mConnections; ++i) {
+            Worker worker = new Worker(i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        Thread.sleep(mWarmup * 1000L);
+        mRecordStart = System.nanoTime();
+        Thread.sleep(mDuration * 1000L);
+        mStop = true;
+        final long elapsed = System.nanoTime() - mRecordStart;
+
+        for (Worker worker : workers)
+            worker.join();
+        for (Idler idler : idlers) {
+            idler.finish();
+            idler.join();
+        }
+        for (Listener listener : listeners) {
+            listener.finish();
+            listener.join();
+        }
+
+        report(workers, idlers, elapsed);
+        if (!listeners.isEmpty())
+            reportListeners(listeners, elapsed);
+    }
+
+    private void report(List<Worker> workers, List<Idler> idlers, long elapsed) {
+        Histogram all = new Histogram();
+        long errors = 0, connectionErrors = 0, wakeups = 0;
+
+        out.println();
+        Histogram.printHeader(out, "ms");
+        for (int i = 0; i < mCommands.length; ++i) {
+            Histogram histogram = new Histogram();
+            long cmdErrors = 0;
+            for (Worker worker : workers) {
+                histogram.add(worker.mHistograms[i]);
+                cmdErrors += worker.mErrors[i];
+            }
+            histogram.print(out, mNames[i], 1000.0);
+            if (cmdErrors > 0)
+                out.println("  " + cmdErrors + " errors (ACK)");
+            all.add(histogram);
+            errors += cmdErrors;
+        }
+        all.print(out, "all", 1000.0);
+
+        for (Worker worker : workers)
+            connectionErrors += worker.mConnectionErrors;
+        for (Idler idler : idlers)
+            wakeups += idler.mWakeups;
+
+        out.println();
+        out.printf("throughput: %.1f commands/s%n", all.getCount() * 1e9 / elapsed);
+        out.println("errors: " + errors + " ACK, " + connectionErrors + " connection");
+        if (!idlers.isEmpty())
+            out.println("idle wakeups: " + wakeups);
+    }
+
+    private void reportListeners(List<Listener> listeners, long elapsed) {
+        Histogram gaps = new Histogram();
+        Histogram firstBytes = new Histogram();
+        long minBytes = Long.MAX_VALUE, maxBytes = 0, totalBytes = 0, stalls = 0;
+        int failed = 0;
+
+        for (Listener listener : listeners) {
+            gaps.add(listener.mGaps);
+            if (listener.mFirstByte >= 0)
+                firstBytes.record(listener.mFirstByte);
+            minBytes = Math.min(minBytes, listener.mBytes);
+            maxBytes = Math.max(maxBytes, listener.mBytes);
+            totalBytes += listener.mBytes;
+            stalls += listener.mStalls;
+            if (listener.mError != null) {
+                failed++;
+                out.println(listener.getName() + ": " + listener.mError);
+            }
+        }
+
+        out.println();
+        Histogram.printHeader(out, "ms");
+        firstBytes.print(out, "first byte", 1000.0);
+        gaps.print(out, "read gap", 1000.0);
+        out.println();
+        /* in kbit/s: bytes * 8 / 1000 / (elapsed / 1e9) */
+        final double scale = 8e6 / elapsed;
+        out.printf("stream: %.1f kbit/s per listener (min %.1f, max %.1f), %.1f kbit/s total%n",
+                totalBytes * scale / listeners.size(), minBytes * scale, maxBytes * scale,
+                totalBytes * scale);
+        out.println("stalls (gaps > " + STALL_THRESHOLD / 1000 + " ms): " + stalls
+                + ", failed listeners: " + failed);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        MPDBench bench = new MPDBench();
+        bench.parseArgs(args);
+        bench.run();
+    }
+}